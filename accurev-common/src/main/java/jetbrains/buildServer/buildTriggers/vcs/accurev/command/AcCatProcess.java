@@ -17,106 +17,215 @@ package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
 
 import com.accurev.common.data.SessionToken;
 import com.accurev.common.process.CatProcess;
-import com.accurev.common.process.RunProcess;
-import com.intellij.execution.configurations.GeneralCommandLine;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
-import jetbrains.buildServer.ExecResult;
-import jetbrains.buildServer.buildTriggers.vcs.accurev.Settings;
+import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.vcs.VcsException;
 
+import org.jetbrains.annotations.NotNull;
+
 /**
+ * Runs 'accurev cat'. The content goes from the process straight to where the
+ * caller wants it (a file, a stream), as bytes; it is never turned into text.
+ *
  * @author Francois Retief
  */
 public class AcCatProcess extends CatProcess
 {
-    public AcCatProcess()
+    private final AcCommandContext context;
+
+    public AcCatProcess(AcCommandContext context)
     {
-        enableDebug = true; // for testing
+        this.context = context;
     }
 
-	public static AcCatProcess getInstance(Settings settings) throws VcsException
+	public static AcCatProcess getInstance(AcCommandContext context) throws VcsException
 	{
-		RunProcess.setAccuRevExecutable(settings.getExecutablePath().getAbsolutePath());
-
-		AcCatProcess cmd = new AcCatProcess();
-/*
-		AcSecurityProcess sec = new AcSecurityProcess();
-		int[] ver = sec.getAccuRevServerVersion();
-		if ((ver[0] == 4 && ver[1] >= 7) || (ver[0] > 4))
-		{
-			String token = "";
-			if (sec.getSecurityInfo().startsWith(sec.NotAuthenticated))
-				token = sec.Login(settings.getUsername(), settings.getPassword());
-			
-			cmd.setSessionToken(new SessionToken(settings.getServerName() + ":" + settings.getServerPort(), token, settings.getUsername()));
-		}
-		else
- */
-			cmd.setSessionToken(null);
+		AcCatProcess cmd = new AcCatProcess(context);
+		cmd.setSessionToken(context.getSession().getToken(context));
 	
 		return cmd;
 	}
 
-    private GeneralCommandLine createCommandLine(String depotName, String streamNameVersion, File workingDir)
+    public String[] addSecurityArgsToCommand(String[] args)
+    {
+        return context.addSecurityArgs(args, sessionToken);
+    }
+
+    /**
+     * Returns the content of an element version. Only for small files, where
+     * the caller needs the bytes anyway.
+     */
+    @NotNull
+    public byte[] catFileContent(String streamNameVersion, String elementName, String depotName)
+        throws VcsException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        catFileContent(streamNameVersion, elementName, depotName, content);
+        return content.toByteArray();
+    }
+
+    /**
+     * Writes the content of an element version to the stream, as it comes.
+     * The stream is not closed.
+     */
+    public void catFileContent(String streamNameVersion, String elementName, String depotName, @NotNull OutputStream out)
+        throws VcsException
     {
-        GeneralCommandLine cli = new GeneralCommandLine();
-        cli.setExePath(RunProcess.getAccuRevExecutable());
-        cli.setWorkDirectory(workingDir.getAbsolutePath());
-        cli.addParameter("cat");
-        cli.addParameter("-v");
-        cli.addParameter(streamNameVersion);
-        cli.addParameter("-p");
-        cli.addParameter(depotName);
-        return cli;
+        cat(createArgs(depotName, streamNameVersion, elementName), OutputSinks.toStream(out));
+    }
+
+    /**
+     * Writes the content of a version of the element with the given id to the
+     * stream. Unlike a name, the id always identifies the same element.
+     */
+    public void catElementContent(String streamNameVersion, String elementId, String depotName, @NotNull OutputStream out)
+        throws VcsException
+    {
+        String[] args = {
+            context.getExecutable(),
+            "cat",
+            "-v",
+            streamNameVersion,
+            "-p",
+            depotName,
+            "-e",
+            elementId
+        };
+        cat(args, OutputSinks.toStream(out));
+    }
+
+    /**
+     * Writes the content of an element version to the file.
+     */
+    public void catFileContent(String streamNameVersion, String elementName, String depotName, @NotNull File target)
+        throws VcsException
+    {
+        cat(createArgs(depotName, streamNameVersion, elementName), OutputSinks.toFile(target));
+    }
+
+    /**
+     * Opens the content of an element version. The content is kept in a
+     * temporary file until the stream is closed.
+     */
+    @NotNull
+    public InputStream openFileContent(String streamNameVersion, String elementName, String depotName)
+        throws VcsException
+    {
+        final File tmpFile = createTempFile(context.getWorkingDir());
+        try {
+            catFileContent(streamNameVersion, elementName, depotName, tmpFile);
+            return new FilterInputStream(new FileInputStream(tmpFile)) {
+                public void close() throws IOException
+                {
+                    try {
+                        super.close();
+                    } finally {
+                        tmpFile.delete();
+                    }
+                }
+            };
+        } catch (IOException ex) {
+            tmpFile.delete();
+            throw new VcsException("Unable to read temporary file!", ex);
+        } catch (VcsException ex) {
+            tmpFile.delete();
+            throw ex;
+        }
     }
 
     public File catFileByName(String depotName, String streamNameVersion, String elementName, File workingDir)
         throws VcsException
     {
-        GeneralCommandLine cli = createCommandLine(depotName, streamNameVersion, workingDir);
-        cli.addParameter("\"" + elementName + "\"");
-        return runCommand(cli, workingDir);
+        return catToTempFile(createArgs(depotName, streamNameVersion, elementName), workingDir);
     }
 
     public File catFileById(String depotName, String streamNameVersion, String elementId, File workingDir)
         throws VcsException, IOException
     {
-        GeneralCommandLine cli = createCommandLine(depotName, streamNameVersion, workingDir);
-        cli.addParameter(elementId);
-        return runCommand(cli, workingDir);
+        return catToTempFile(createArgs(depotName, streamNameVersion, elementId), workingDir);
+    }
+
+    private String[] createArgs(String depotName, String streamNameVersion, String element)
+    {
+        return new String[] {
+            context.getExecutable(),
+            "cat",
+            "-v",
+            streamNameVersion,
+            "-p",
+            depotName,
+            element
+        };
+    }
+
+    private File catToTempFile(String[] args, File workingDir)
+        throws VcsException
+    {
+        File tmpFile = createTempFile(workingDir);
+        try {
+            cat(args, OutputSinks.toFile(tmpFile));
+            return tmpFile;
+        } catch (VcsException ex) {
+            tmpFile.delete();
+            throw ex;
+        }
     }
 
-    private File runCommand(GeneralCommandLine cli, File workingDir)
+    private static File createTempFile(File dir)
         throws VcsException
     {
-        if (enableDebug)
+        try {
+            return File.createTempFile("accurev$", ".tmp", dir);
+        } catch (IOException ex) {
+            throw new VcsException("Unable to create a temporary file!", ex);
+        }
+    }
+
+    private void cat(String[] args, OutputSink content)
+        throws VcsException
+    {
+        int result = catOnce(args, content);
+        if (result == ERR_NOT_AUTHENTICATED)
         {
-            StringBuilder sb = new StringBuilder("ACAPI:");
-            for (String cmd : cli.getCommands())
+            // Nothing was written, AccuRev refuses the session before it starts
+            SessionToken renewed = context.getSession().refreshToken(context, sessionToken);
+            if (renewed != null)
             {
-                sb.append(" '" + cmd + "'");
+                setSessionToken(renewed);
+                result = catOnce(args, content);
             }
-            System.out.println(sb.toString());
         }
+        if (result != ERR_SUCCESS)
+        {
+            String message = "'accurev cat' command failed. (" + CommandUtil.errorToString(result) + ")"
+                + "\nstderr: " + getErrorText();
+            Loggers.VCS.warn(message);
+            throw new VcsException(message);
+        }
+    }
 
-        ExecResult result = CommandUtil.runCommand(cli);
+    private int catOnce(String[] args, OutputSink content)
+        throws VcsException
+    {
+        OutputCapture stderr = OutputCapture.create();
+        int result;
         try {
-            // Save the contents to a temporary file.
-            File tmpFile = File.createTempFile("accurev$", ".tmp", workingDir);
-            try {
-                FileWriter wr = new FileWriter(tmpFile);
-                wr.write(result.getStdout());
-                wr.close();
-                return tmpFile;
-            } catch (IOException ex) {
-                throw new VcsException("Unable to write temporary file!", ex);
-            }
-        } catch (IOException ex) {
-            throw new VcsException("Unable to create a temporary file!", ex);
+            result = new AcProcessExecutor(context).execute(addSecurityArgsToCommand(args), null, content, stderr, null);
+        } finally {
+            errorText = new StringBuffer(stderr.getText());
+            stderr.dispose();
         }
+        result = AcProcessExecutor.getFailureStatus(result, errorText.toString());
+        commandStatus = result;
+        context.getCircuitBreaker().afterCommand(result == ERR_CONNECTING_SERVER);
+        return result;
     }
 }
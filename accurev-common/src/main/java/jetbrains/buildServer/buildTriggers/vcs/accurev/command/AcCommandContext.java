@@ -0,0 +1,289 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Settings;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.accurev.common.data.SessionToken;
+import com.intellij.execution.configurations.GeneralCommandLine;
+
+/**
+ * Everything a command needs to run for a VCS root: the AccuRev executable,
+ * the working directory, the environment and the login session.
+ *
+ * A context is immutable and belongs to the commands that were created with
+ * it, so roots that use different AccuRev installations (or a different
+ * ACCUREV_HOME) can run commands at the same time. It replaces the executable
+ * that RunProcess keeps in a static field.
+ *
+ * @author Francois Retief
+ */
+public class AcCommandContext
+{
+	public static final String ACCUREV_HOME = "ACCUREV_HOME";
+
+	// Commands that change the depot; stopping one halfway can leave it half done
+	private static final Set<String> WRITE_COMMANDS = new HashSet<String>(Arrays.asList(
+		"promote", "keep", "add", "defunct", "purge", "revert", "merge", "move",
+		"mkstream", "chstream", "remove", "reactivate", "mksnap", "mkws", "chws", "rmws",
+		"mkref", "chref", "incl", "excl", "incldo", "clear", "lock", "unlock"));
+
+	/**
+	 * Creates the context for the commands of a root.
+	 *
+	 * @param workingDir the directory to run the commands in, or null for the
+	 *                   current directory of the server or agent
+	 */
+	@NotNull
+	public static AcCommandContext create(@NotNull Settings settings, @Nullable File workingDir)
+	{
+		Map<String, String> environment = new HashMap<String, String>();
+		String home = settings.getAccuRevHome();
+		if (home != null)
+		{
+			environment.put(ACCUREV_HOME, home);
+		}
+
+		return new AcCommandContext(settings, settings.getExecutablePath().getAbsolutePath(), workingDir,
+			Collections.unmodifiableMap(environment), AcSession.getInstance(settings), ProcessGovernor.Priority.BACKGROUND);
+	}
+
+	private final Settings settings;
+	private final String executable;
+	private final File workingDir;
+	private final Map<String, String> environment;
+	private final AcSession session;
+	private final ProcessGovernor.Priority priority;
+
+	private AcCommandContext(Settings settings, String executable, File workingDir, Map<String, String> environment,
+			AcSession session, ProcessGovernor.Priority priority)
+	{
+		this.settings = settings;
+		this.executable = executable;
+		this.workingDir = workingDir;
+		this.environment = environment;
+		this.session = session;
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns a copy of this context that runs the commands in another directory.
+	 */
+	@NotNull
+	public AcCommandContext withWorkingDir(@Nullable File dir)
+	{
+		return new AcCommandContext(settings, executable, dir, environment, session, priority);
+	}
+
+	/**
+	 * Returns a copy of this context whose commands wait for a process slot with
+	 * another priority.
+	 */
+	@NotNull
+	public AcCommandContext withPriority(@NotNull ProcessGovernor.Priority priority)
+	{
+		return new AcCommandContext(settings, executable, workingDir, environment, session, priority);
+	}
+
+	@NotNull
+	public Settings getSettings()
+	{
+		return settings;
+	}
+
+	@NotNull
+	public String getExecutable()
+	{
+		return executable;
+	}
+
+	@Nullable
+	public File getWorkingDir()
+	{
+		return workingDir;
+	}
+
+	/**
+	 * Returns the variables to add to the environment of the commands; the rest
+	 * of the environment is inherited.
+	 */
+	@NotNull
+	public Map<String, String> getEnvironment()
+	{
+		return environment;
+	}
+
+	@NotNull
+	public AcSession getSession()
+	{
+		return session;
+	}
+
+	@NotNull
+	public ProcessGovernor.Priority getPriority()
+	{
+		return priority;
+	}
+
+	@NotNull
+	public ProcessGovernor getGovernor()
+	{
+		return ProcessGovernor.getInstance(settings.getServerName() + ":" + settings.getServerPort());
+	}
+
+	@NotNull
+	public ServerCircuitBreaker getCircuitBreaker()
+	{
+		return ServerCircuitBreaker.getInstance(settings.getServerName() + ":" + settings.getServerPort());
+	}
+
+	/**
+	 * Returns the timeout in milliseconds for an AccuRev command, by the class
+	 * the command belongs to; 0 for no limit.
+	 *
+	 * @param command the AccuRev command, e.g. "hist"
+	 */
+	public long getTimeout(@Nullable String command)
+	{
+		String commandClass = Settings.COMMAND_QUERY;
+		if ("login".equals(command))
+			commandClass = Settings.COMMAND_LOGIN;
+		else if ("hist".equals(command))
+			commandClass = Settings.COMMAND_HISTORY;
+		else if ("cat".equals(command))
+			commandClass = Settings.COMMAND_CONTENT;
+		else if ("pop".equals(command) || "update".equals(command) || "co".equals(command))
+			commandClass = Settings.COMMAND_POPULATE;
+		else if (WRITE_COMMANDS.contains(command))
+			commandClass = Settings.COMMAND_WRITE;
+		return settings.getCommandTimeout(commandClass) * 1000L;
+	}
+
+	/**
+	 * Starts watching a command of this context that is about to run on the
+	 * current thread; see {@link CommandWatchdog}.
+	 */
+	@NotNull
+	public CommandWatchdog.Watch watch(@Nullable String command, @NotNull CommandWatchdog.Target target)
+	{
+		return CommandWatchdog.watch(getTimeout(command), target);
+	}
+
+	/**
+	 * Waits for a slot to run a process on the AccuRev server of this context.
+	 * Fails right away while the server is known to be unreachable.
+	 */
+	@NotNull
+	public ProcessGovernor.Permit acquireProcess() throws VcsException
+	{
+		return acquireProcesses(1, true);
+	}
+
+	/**
+	 * Takes slots for several processes that have to run at the same time.
+	 *
+	 * @param wait whether to wait for the slots; if not, null is returned when
+	 *             they are not free right away
+	 */
+	@Nullable
+	public ProcessGovernor.Permit acquireProcesses(int count, boolean wait) throws VcsException
+	{
+		getCircuitBreaker().beforeCommand(this);
+
+		ProcessGovernor governor = getGovernor();
+		if (!wait)
+			return governor.tryAcquire(count);
+
+		// One queue per root; the settings don't know the root, so go by what it watches
+		String queue = settings.getDepot() + "/" + settings.getWatchStream() + "/" + settings.getUsername();
+		return governor.acquire(queue, priority, count);
+	}
+
+	/**
+	 * Points a command line at this context's executable and adds the security
+	 * arguments for the session token, the same way RunProcess does for the
+	 * executable it knows about.
+	 */
+	@NotNull
+	public String[] addSecurityArgs(@NotNull String[] args, @Nullable SessionToken token)
+	{
+		if (args.length < 2 || token == null)
+		{
+			String[] result = args.clone();
+			if (result.length > 0)
+				result[0] = executable;
+			return result;
+		}
+
+		List<String> result = new ArrayList<String>(args.length + 4);
+		result.add(executable);
+		result.add(args[1]);
+		result.add("-H");
+		result.add(token.getServer());
+		if (!"".equals(token.getSecurityToken()))
+		{
+			result.add("-A");
+			result.add(token.getSecurityToken());
+		}
+		else if ("login".equals(args[1]))
+		{
+			result.add("-A");
+		}
+		for (int i = 2; i < args.length; ++i)
+		{
+			result.add(args[i]);
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	public void applyTo(@NotNull GeneralCommandLine cli)
+	{
+		cli.setExePath(executable);
+		if (workingDir != null)
+		{
+			cli.setWorkDirectory(workingDir.getAbsolutePath());
+		}
+		if (!environment.isEmpty())
+		{
+			Map<String, String> env = new HashMap<String, String>(System.getenv());
+			env.putAll(environment);
+			cli.setEnvParams(env);
+		}
+	}
+
+	public void applyTo(@NotNull ProcessBuilder builder)
+	{
+		if (workingDir != null)
+		{
+			builder.directory(workingDir);
+		}
+		builder.environment().putAll(environment);
+	}
+}
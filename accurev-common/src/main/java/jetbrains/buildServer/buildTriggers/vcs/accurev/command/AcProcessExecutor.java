@@ -0,0 +1,203 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.accurev.common.process.RunProcess;
+import com.accurev.common.utils.SecurityUtils;
+
+/**
+ * Runs an AccuRev command and hands its output to {@link OutputSink}s while it
+ * runs. Stdout is read by the calling thread and stderr by a pooled thread, so
+ * a command costs at most one thread besides the caller, whatever its output.
+ *
+ * The command takes a process slot of the server (unless it runs under a
+ * reservation) and is stopped when it times out or the caller is interrupted.
+ *
+ * @author Francois Retief
+ */
+public class AcProcessExecutor
+{
+	private static final ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "AccuRev output reader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final AcCommandContext context;
+
+	public AcProcessExecutor(@NotNull AcCommandContext context)
+	{
+		this.context = context;
+	}
+
+	/**
+	 * Runs the command to the end.
+	 *
+	 * @param args        the command line, executable first; used as is
+	 * @param dir         the directory to run in, or null for the one of the context
+	 * @param reservation the process slot to run in, or null to take one
+	 * @return the exit code of the command, or
+	 *         {@link RunProcess#ERR_PROCESS_WAIT_TERMINATED} if it was stopped early
+	 *         by a sink
+	 * @throws VcsException if the command could not be started, timed out or was
+	 *                      cancelled, or if reading its output failed
+	 */
+	public int execute(@NotNull String[] args, @Nullable File dir, @NotNull OutputSink stdout, @NotNull OutputSink stderr,
+		@Nullable ProcessGovernor.Permit reservation) throws VcsException
+	{
+		// Only the sub-command is logged; 'login' has the password on its command line
+		String command = (args.length > 1) ? args[1] : null;
+		String cmdName = "accurev " + command;
+
+		ProcessGovernor.Permit permit = (reservation == null) ? context.acquireProcess() : null;
+		try
+		{
+			ProcessBuilder builder = new ProcessBuilder(Arrays.asList(args));
+			context.applyTo(builder);
+			if (dir != null)
+				builder.directory(dir);
+
+			final Process process;
+			try
+			{
+				process = builder.start();
+			}
+			catch (IOException ex)
+			{
+				throw new VcsException("Unable to start '" + cmdName + "': " + ex.getMessage(), ex);
+			}
+			if (Loggers.VCS.isDebugEnabled())
+				Loggers.VCS.debug("Started '" + cmdName + "'");
+
+			CommandWatchdog.Watch watch = context.watch(command, new CommandWatchdog.Target() {
+				public void kill()
+				{
+					process.destroy();
+				}
+			});
+
+			int result;
+			IOException readError = null;
+			try
+			{
+				process.getOutputStream().close(); // AccuRev never reads stdin
+
+				Future<Boolean> errReader = readers.submit(new Sink(stderr, process.getErrorStream()));
+				boolean complete = new Sink(stdout, process.getInputStream()).call();
+				if (!complete)
+					process.destroy();
+
+				result = process.waitFor();
+				try
+				{
+					errReader.get();
+				}
+				catch (ExecutionException ex)
+				{
+					readError = (ex.getCause() instanceof IOException) ? (IOException)ex.getCause() : new IOException(ex.getCause().toString());
+				}
+				if (!complete)
+					result = RunProcess.ERR_PROCESS_WAIT_TERMINATED;
+			}
+			catch (IOException ex)
+			{
+				readError = ex;
+				process.destroy();
+				result = RunProcess.ERR_FAILURE;
+			}
+			catch (InterruptedException ex)
+			{
+				watch.cancel();
+				result = RunProcess.ERR_PROCESS_WAIT_TERMINATED;
+			}
+			finally
+			{
+				watch.stop();
+			}
+			watch.check(cmdName);
+
+			if (readError != null)
+				throw new VcsException("Unable to read the output of '" + cmdName + "': " + readError.getMessage(), readError);
+			return result;
+		}
+		finally
+		{
+			if (permit != null)
+				permit.release();
+		}
+	}
+
+	/**
+	 * Translates the exit code of a failed command the way RunProcess does:
+	 * {@link RunProcess#ERR_NOT_AUTHENTICATED} when the session was refused,
+	 * {@link RunProcess#ERR_CONNECTING_SERVER} when the server could not be
+	 * reached, otherwise the exit code itself.
+	 */
+	public static int getFailureStatus(int exitCode, @NotNull String output)
+	{
+		if (exitCode == RunProcess.ERR_SUCCESS || exitCode == RunProcess.ERR_PROCESS_WAIT_TERMINATED)
+			return exitCode;
+		if (!SecurityUtils.isUserAuthenticated(output))
+			return RunProcess.ERR_NOT_AUTHENTICATED;
+		if (CommandUtil.isConnectionError(output))
+			return RunProcess.ERR_CONNECTING_SERVER;
+		return exitCode;
+	}
+
+	private static class Sink implements Callable<Boolean>
+	{
+		private final OutputSink sink;
+		private final InputStream stream;
+
+		Sink(OutputSink sink, InputStream stream)
+		{
+			this.sink = sink;
+			this.stream = stream;
+		}
+
+		public Boolean call() throws IOException
+		{
+			try
+			{
+				return sink.consume(stream);
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+	}
+}
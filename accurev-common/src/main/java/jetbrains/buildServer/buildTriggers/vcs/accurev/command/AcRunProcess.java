@@ -50,7 +50,7 @@ public interface AcRunProcess {
     public void populateStream(@NotNull String depot, @NotNull String stream, @NotNull String location)
         	throws VcsException;
     
-    public XMLTag accurevShow(@NotNull String depot, @NotNull String stream) 
+    public StreamInfo accurevShow(@NotNull String depot, @NotNull String stream) 
     		throws VcsException;
     
 	public ElementStatusData getElementInfo(@NotNull String depot, @NotNull String stream, String element) 
@@ -19,9 +19,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Vector;
 import java.util.List;
 
@@ -37,12 +42,9 @@ import com.accurev.common.process.*;
 
 import org.jetbrains.annotations.NotNull;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
 
 /**
  * @author Francois Retief
@@ -58,47 +60,102 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		}
 	}
 	
-	private File workingDir;
+	private final File workingDir;
 	private List<String> errMessages;
 	final private  String commandPrefix = "RUN COMMAND:"; 
 
-	public AcRunProcessExe(File workingDir)
+	// Cached ancestor answers. NO_ANCESTOR and NOT_VISIBLE stand in for a null result,
+	// as a null from the cache means the answer is not (or no longer) in it.
+	private static final String NO_ANCESTOR = "";
+	private static final String NOT_VISIBLE = "-";
+	private AncestorCache ancestorCache;
+	private String cacheNamespace = "";
+	private String serverKey = "";
+	private final AcCommandContext context;
+	private ProcessGovernor.Permit reservation;
+	private OutputCapture stdoutCapture;
+	private OutputCapture stderrCapture;
+
+	// How runExec runs a command
+	private static final int EXEC_PLAIN = 0;
+	private static final int EXEC_PARSE = 1;
+	private static final int EXEC_ASYNC = 2;
+
+	public AcRunProcessExe(AcCommandContext context)
 	{
-		this.workingDir = workingDir;
+		Settings settings = context.getSettings();
+		this.context = context;
+		this.workingDir = context.getWorkingDir();
+		this.serverKey = settings.getServerName() + ":" + settings.getServerPort();
+		this.cacheNamespace = serverKey + "/" + settings.getDepot();
 		enableDebug = true; // for testing
 	}
+
+	public AcRunProcessExe(File workingDir, Settings settings)
+	{
+		this(AcCommandContext.create(settings, workingDir));
+	}
+
+	/**
+	 * Creates a command runner for another thread, with the same session and
+	 * caches. RunProcess holds the state of the running command, so a single
+	 * instance must never run two commands at once.
+	 */
+	public AcRunProcessExe(AcRunProcessExe other)
+	{
+		this(other.context);
+		this.errMessages = other.errMessages;
+		this.ancestorCache = other.ancestorCache;
+		this.sessionToken = other.sessionToken;
+	}
 	
 	public void setErrMessagesList(List<String> errMessages) throws VcsException
 	{
 		this.errMessages = errMessages;
 	}
 
-	public static AcRunProcess getInstance(Settings settings, File workingDirectory) throws VcsException
+	public void setAncestorCache(AncestorCache ancestorCache)
 	{
-		RunProcess.setAccuRevExecutable(settings.getExecutablePath().getAbsolutePath());
+		this.ancestorCache = ancestorCache;
+	}
 
-		AcRunProcess cmd = new AcRunProcessExe(workingDirectory);
-		
-		AcSecurityProcess sec = new AcSecurityProcess();
-		int[] ver = sec.getAccuRevServerVersion();
-		
-		if ((ver[0] == 4 && ver[1] >= 7) || (ver[0] > 4)) 
-		{
-			String token = "";
-	    	if (sec.getSecurityInfo().startsWith(sec.NotAuthenticated))
-	        	token = sec.Login(settings.getUsername(), settings.getPassword());
-			
-	    	cmd.setSessionToken(new SessionToken(settings.getServerName() + ":" + settings.getServerPort(), token, settings.getUsername()));
-		}
+	/**
+	 * Runs the commands of this runner in process slots that were already taken,
+	 * instead of waiting for a slot per command. Null to go back to waiting.
+	 */
+	public void setReservation(ProcessGovernor.Permit reservation)
+	{
+		this.reservation = reservation;
+	}
+
+	public static AcRunProcess getInstance(Settings settings, File workingDirectory) throws VcsException
+	{
+		AcCommandContext context = AcCommandContext.create(settings, workingDirectory);
+		AcRunProcessExe cmd = new AcRunProcessExe(context);
+		cmd.setSessionToken(context.getSession().getToken(context));
 
 		return cmd;
 	}
 
+	public AcCommandContext getContext()
+	{
+		return context;
+	}
+
 	public SessionToken getSessionToken()
 	{
 		return sessionToken;
 	}
 
+	/**
+	 * Every command is run with the executable of this runner's context, not the
+	 * one RunProcess keeps for the whole JVM.
+	 */
+	public String[] addSecurityArgsToCommand(String[] args)
+	{
+		return context.addSecurityArgs(args, sessionToken);
+	}
+
 	// TODO: this is the code to format an AccuRev date
     // /** Date format for AccuRev. */
     //private static final String ACCUREV_DATE_FORMAT = "yyyy/MM/dd HH:mm:ss";
@@ -141,29 +198,147 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		return result;
 	}
 
+	/**
+	 * Runs a command; if the server refuses the session token, the token is
+	 * renewed through the shared session and the command is run once more.
+	 */
+	private int runExec(String[] args, String dir, AccuRevHandler handler, int mode) throws VcsException
+	{
+		return runExec(args, dir, handler, mode, null);
+	}
+
+	/**
+	 * @param output where the output goes, or null for the sink that goes with
+	 *               the mode
+	 */
+	private int runExec(String[] args, String dir, AccuRevHandler handler, int mode, OutputSink output) throws VcsException
+	{
+		int result = runExecOnce(args, dir, handler, mode, output);
+		if (result == ERR_NOT_AUTHENTICATED)
+		{
+			SessionToken renewed = context.getSession().refreshToken(context, sessionToken);
+			if (renewed != null)
+			{
+				setSessionToken(renewed);
+				result = runExecOnce(args, dir, handler, mode, output);
+			}
+		}
+		return result;
+	}
+
+	private int runExecOnce(String[] args, String dir, AccuRevHandler handler, int mode, OutputSink output) throws VcsException
+	{
+		// The output of the previous command is not needed anymore
+		disposeOutput();
+		stdoutCapture = OutputCapture.create();
+		stderrCapture = OutputCapture.create();
+		parseHandler = handler;
+		commandStatus = ERR_SUCCESS;
+
+		OutputSink stdout;
+		OutputSinks.ParserSink parser = null;
+		if (output != null)
+		{
+			stdout = output;
+		}
+		else if (mode != EXEC_PLAIN && handler != null)
+		{
+			// Parsed output is kept as well, bounded, for the error messages
+			parser = OutputSinks.toParser(handler, mode == EXEC_ASYNC, stdoutCapture);
+			stdout = parser;
+		}
+		else
+		{
+			stdout = stdoutCapture;
+		}
+
+		String[] command = addSecurityArgsToCommand(args);
+		int result;
+		try
+		{
+			result = new AcProcessExecutor(context).execute(command, (dir != null) ? new File(dir) : null,
+				stdout, stderrCapture, reservation);
+		}
+		finally
+		{
+			// Same state RunProcess leaves behind, for ThrowIfError and the callers;
+			// bounded, the whole output is in the capture files if it was large
+			responseText = new StringBuffer(stdoutCapture.getText());
+			errorText = new StringBuffer(stderrCapture.getText());
+		}
+
+		if (result != ERR_SUCCESS)
+		{
+			String text = responseText.toString() + errorText.toString();
+			if (handler != null && handler.getMessageData() != null)
+				text += handler.getMessageData();
+			result = AcProcessExecutor.getFailureStatus(result, text);
+		}
+		commandStatus = result;
+		context.getCircuitBreaker().afterCommand(result == ERR_CONNECTING_SERVER);
+
+		// The handler only holds part of an answer that could not be parsed. A command
+		// that failed anyway is reported (or retried) by the caller, by its exit code.
+		if (parser != null && parser.getError() != null && (result == ERR_SUCCESS || result == 1))
+		{
+			String message = "'accurev " + args[1] + "' output could not be parsed: " + parser.getError().getMessage();
+			Loggers.VCS.warn(message);
+			throw new VcsException(message, parser.getError());
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the files the output of the last command was written to, if it was
+	 * too large to keep in memory.
+	 */
+	public void disposeOutput()
+	{
+		if (stdoutCapture != null)
+			stdoutCapture.dispose();
+		if (stderrCapture != null)
+			stderrCapture.dispose();
+		stdoutCapture = null;
+		stderrCapture = null;
+	}
+
 	public int doExecute(String cmdName, String[] args)
 		throws VcsException
 	{
 		mLastCommand = args;
 		mLastResponse = null;
-		return ThrowIfError(cmdName, exec(args, workingDir.getAbsolutePath()), null);
+		return ThrowIfError(cmdName, runExec(args, workingDir.getAbsolutePath(), null, EXEC_PLAIN), null);
 	}
 
 	public int doExecute(String cmdName, String[] args, AccuRevHandler parseHandler)
 		throws VcsException
 	{
 		mLastCommand = args;
-		int ret = ThrowIfError(cmdName, exec(args, workingDir.getAbsolutePath(), parseHandler), null);
+		int ret = ThrowIfError(cmdName, runExec(args, workingDir.getAbsolutePath(), parseHandler, EXEC_PARSE), null);
 		mLastResponse = parseHandler.getMessageData();
 		
 		return ret;
 	}
 
+	/**
+	 * Like {@link #doExecute(String, String[], AccuRevHandler)}, but parses the output
+	 * while the command runs instead of buffering all of it first.
+	 */
+	public int doExecuteStreaming(String cmdName, String[] args, AccuRevHandler parseHandler)
+		throws VcsException
+	{
+		mLastCommand = args;
+		int ret = ThrowIfError(cmdName, runExec(args, workingDir.getAbsolutePath(), parseHandler, EXEC_ASYNC), null);
+		mLastResponse = parseHandler.getMessageData();
+
+		return ret;
+	}
+
 	public int doExecute(String cmdName, String[] args, int[] acceptableReturnCodes) throws VcsException
 	{
 		mLastCommand = args;
 		mLastResponse = null;
-		int returnCode  = ThrowIfError(cmdName, exec(args, workingDir.getAbsolutePath(), parseHandler), acceptableReturnCodes);
+		int returnCode  = ThrowIfError(cmdName, runExec(args, workingDir.getAbsolutePath(), parseHandler, EXEC_PARSE), acceptableReturnCodes);
 		return returnCode;
 	}
 	
@@ -185,7 +360,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	throws VcsException
 	{
 		String[] args = {
-						RunProcess.getAccuRevExecutable(),
+						context.getExecutable(),
 						"chstream",
 						"-s",
 						stream,
@@ -209,7 +384,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	{
 
 		String[] args = {
-						RunProcess.getAccuRevExecutable(),
+						context.getExecutable(),
 						"mkstream",
 						"-s",
 						newStream,
@@ -232,7 +407,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
     	throws VcsException
     {
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"pop",
 				"-fx",
 				"-R",
@@ -252,12 +427,79 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		checkReturnCode(cmdName,returnCode);
     }
 
+    /**
+     * Populates the given elements, as they were in the stream at the transaction,
+     * below the location in a single 'accurev pop'. Directories are created, but
+     * not populated recursively.
+     */
+    public void populateElements(@NotNull String stream, @NotNull String transaction,
+    		@NotNull String location, @NotNull Collection<String> elements) throws VcsException
+    {
+    	File listFile = writeListFile(elements);
+    	try
+    	{
+    		String[] args = {
+    				context.getExecutable(),
+    				"pop",
+    				"-O",
+    				"-v", stream,
+    				"-t", transaction,
+    				"-L", location,
+    				"-l", listFile.getAbsolutePath(),
+    		};
+
+    		String command = commandPrefix + "accurev pop -O -v " + stream + " -t " + transaction + " -L " + location
+    			+ " -l " + listFile.getAbsolutePath() + " (" + elements.size() + " elements)";
+    		printBuildMessage(command);
+
+    		String cmdName = "accurev pop";
+    		int returnCode = doExecute(cmdName, args);
+
+    		printResultMessages(returnCode);
+    		checkReturnCode(cmdName, returnCode);
+    	}
+    	finally
+    	{
+    		listFile.delete();
+    	}
+    }
+
+    /**
+     * Writes the elements to a list file, for the '-l' option of the commands.
+     */
+    private File writeListFile(Collection<String> elements) throws VcsException
+    {
+    	try
+    	{
+    		File listFile = File.createTempFile("accurev", ".lst", workingDir);
+    		// AccuRev reads element names as UTF-8, whatever the platform charset
+    		Writer listFileWriter = new OutputStreamWriter(new FileOutputStream(listFile), "UTF-8");
+    		try
+    		{
+    			for (String element : elements)
+    			{
+    				listFileWriter.write(element);
+    				listFileWriter.write("\n");
+    			}
+    		}
+    		finally
+    		{
+    			listFileWriter.close();
+    		}
+    		return listFile;
+    	}
+    	catch (IOException ex)
+    	{
+    		throw new VcsException("Unable to write the element list: " + ex.getMessage(), ex);
+    	}
+    }
+
 	@SuppressWarnings("unchecked")
 	public TransactionData getTransaction(@NotNull String depot, @NotNull String stream, String transactionId)
 		throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"hist",
 				"-fx",
 				"-t", transactionId,
@@ -288,11 +530,23 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		return getRevisionsBetween(depot, stream, lastVer, "highest");
 	}
 
-	@SuppressWarnings("unchecked")
 	public Vector<TransactionData> getRevisionsBetween(@NotNull String depot, @NotNull String stream, String fromVer, String toVer) throws VcsException
+	{
+		final Vector<TransactionData> result = new Vector<TransactionData>();
+		readHistoryBetween(depot, stream, fromVer, toVer, new HistoryConsumer() {
+			public void transaction(@NotNull TransactionData tx)
+			{
+				result.add(tx);
+			}
+		});
+		return result;
+	}
+	
+	public AcHistoryParser getHistoryBetween(@NotNull String depot, @NotNull String stream, String fromVer, String toVer) 
+			throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"hist",
 				"-fvx",
 				"-t", toVer + "-" + fromVer,
@@ -303,18 +557,24 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		String command  = commandPrefix + "accurev hist -fvx -t" + toVer + "-" + fromVer + " -k promote -p " + depot + " -s " + stream;
 		printBuildMessage(command);
 		
-		HistoryParser hist = new HistoryParser();
-		int returnCode = doExecute("accurev hist", args, hist);
+		AcHistoryParser hist = new AcHistoryParser();
+		int returnCode = doExecuteStreaming("accurev hist", args, hist);
 		
 		printResultMessages(returnCode);		
-		return hist.getHistoryDataCollection();
+		return hist;
 	}
-	
-	public AcHistoryParser getHistoryBetween(@NotNull String depot, @NotNull String stream, String fromVer, String toVer) 
-			throws VcsException
+
+	/**
+	 * Runs 'accurev hist' and hands the transactions to the consumer while the
+	 * output is being parsed, so that only one transaction is held in memory.
+	 *
+	 * @return the number of transactions read
+	 */
+	public int readHistoryBetween(@NotNull String depot, @NotNull String stream, String fromVer, String toVer,
+			@NotNull HistoryConsumer consumer) throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"hist",
 				"-fvx",
 				"-t", toVer + "-" + fromVer,
@@ -324,19 +584,26 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		};
 		String command  = commandPrefix + "accurev hist -fvx -t" + toVer + "-" + fromVer + " -k promote -p " + depot + " -s " + stream;
 		printBuildMessage(command);
-		
-		AcHistoryParser hist = new AcHistoryParser();
-		int returnCode = doExecute("accurev hist", args, hist);
-		
-		printResultMessages(returnCode);		
-		return hist;
+
+		mLastCommand = args;
+		StreamingHistoryParser hist = new StreamingHistoryParser(consumer);
+		int returnCode = runExec(args, workingDir.getAbsolutePath(), hist, EXEC_ASYNC);
+		if (hist.getConsumerError() != null)
+			throw hist.getConsumerError();
+
+		ThrowIfError("accurev hist", returnCode, null);
+		mLastResponse = hist.getMessageData();
+		if (!hist.isComplete())
+			throw new VcsException("'accurev hist' output for stream " + stream + " could not be parsed");
+
+		printResultMessages(returnCode);
+		return hist.getCount();
 	}
 	
-	
 	public GenericXMLParser getAsXMLRevisionsBetween(@NotNull String depot, @NotNull String stream, String fromVer, String toVer) throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"hist",
 				"-fvx",
 				"-t", toVer + "-" + fromVer,
@@ -359,7 +626,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		throws VcsException 
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"hist",
 				"-fx",
 				"-t", "now.1",
@@ -392,31 +659,36 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
         int returnCode = doExecute("accurev hist", args, parser);
         printResultMessages(returnCode);
         
-        XMLTag xTag = (XMLTag)parser.getTagList().get(0);
-        String sInput = xTag.toXML();
-        sInput = sInput.replaceAll("&", "&amp;");
-        ByteArrayInputStream ssInput = new ByteArrayInputStream(sInput.getBytes());
-
-        try
+        // The output was escaped while it was parsed, see XmlEscapingInputStream
+        XMLTag transaction = parser.getTagList().isEmpty() ? null : ((XMLTag)parser.getTagList().get(0)).getTag("transaction");
+        String id = (transaction != null) ? transaction.getAttributeValue("id") : null;
+        if (id == null)
         {
-            DocumentBuilderFactory DocFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder DocBuilder = DocFactory.newDocumentBuilder();
-            Document DocToParse = DocBuilder.parse(ssInput);
-            DocToParse.getElementsByTagName("transaction").item(0);
-            Element iTxn = (Element) DocToParse.getElementsByTagName("transaction").item(0);
-            return iTxn.getAttribute("id");
-        }
-        catch (Exception ex)
-        {
-            throw new VcsException("Unable to parse response document whilst obtaining latest TXNID: " + ex.getMessage() + "\nResponse Data: " + ssInput);
+            throw new VcsException("Unable to parse response document whilst obtaining latest TXNID"
+                + "\nResponse Data: " + getResponseText());
         }
+        return id;
     }
 
 	public String getDirectAncestor(String verId, String filePath)
 			throws VcsException
+	{
+		String cacheKey = getAncestorCacheKey("anc", verId, filePath);
+		String cached = (cacheKey != null) ? ancestorCache.get(cacheKey) : null;
+		if (cached != null)
+			return fromCachedAncestor(cached);
+
+		String ancestor = runDirectAncestor(verId, filePath);
+		if (cacheKey != null)
+			ancestorCache.put(cacheKey, toCachedAncestor(ancestor));
+		return ancestor;
+	}
+
+	private String runDirectAncestor(String verId, String filePath)
+			throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"anc",
 				"-fx",
 				"-v", verId,
@@ -430,28 +702,32 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		String command = commandPrefix + "accurev anc -fx -v " + verId + " " + filePath;
 		printBuildMessage(command);
 
-		GenericXMLParser parser = new GenericXMLParser();
+		AncestorParser parser = new AncestorParser();
 		int returnCode = doExecute("accurev anc", args, parser);
 		printResultMessages(returnCode);
 
-		XMLTag acResponse = (XMLTag)parser.getTagList().get(0);
-		assert acResponse.getName().equals("acResponse");
+		return parser.getAncestor(); /* null if the ancestor is not found */
+	}
 
-		XMLTag message = acResponse.getTag("message");
-		if (message != null && "true".equals(message.getAttributeValue("error")))
-			return null; /* Ancestor not found */
+	public String getPredecessorBeforeTransaction(String verId, String filePath)
+		throws VcsException
+	{
+		String cacheKey = getAncestorCacheKey("anc-1", verId, filePath);
+		String cached = (cacheKey != null) ? ancestorCache.get(cacheKey) : null;
+		if (cached != null)
+			return fromCachedAncestor(cached);
 
-		XMLTag element = acResponse.getTag("element");
-		String streamId = element.getAttributeValue("stream");
-		String ancVerId = element.getAttributeValue("version");
-		return streamId +"/"+ ancVerId;
+		String predecessor = runPredecessorBeforeTransaction(verId, filePath);
+		if (cacheKey != null)
+			ancestorCache.put(cacheKey, toCachedAncestor(predecessor));
+		return predecessor;
 	}
 
-	public String getPredecessorBeforeTransaction(String verId, String filePath)
+	private String runPredecessorBeforeTransaction(String verId, String filePath)
 		throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"anc",
 				"-fx",
 				"-v", verId,
@@ -466,21 +742,185 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		String command = commandPrefix + "accurev anc -fx -v " + verId + " -1 " + filePath;
 		printBuildMessage(command);
 
-		GenericXMLParser parser = new GenericXMLParser();
+		AncestorParser parser = new AncestorParser();
 		int returnCode = doExecute("accurev anc", args, parser);
 		printResultMessages(returnCode);
 
-		XMLTag acResponse = (XMLTag)parser.getTagList().get(0);
-		assert acResponse.getName().equals("acResponse");
-		
-		XMLTag message = acResponse.getTag("message");
-		if (message != null && "true".equals(message.getAttributeValue("error")))
-			return null; /* Ancestor not found */
-
-		XMLTag element = acResponse.getTag("element");
-		String streamId = element.getAttributeValue("stream");
-		String ancVerId = element.getAttributeValue("version");
-		return streamId +"/"+ ancVerId;
+		return parser.getAncestor(); /* null if the ancestor is not found */
+	}
+
+	/**
+	 * Only answers about a fixed version (e.g. "stream/12") can be cached; the
+	 * ancestor of whatever is currently in a stream moves along with the stream.
+	 */
+	private String getAncestorCacheKey(String kind, String verId, String filePath)
+	{
+		if (ancestorCache == null || !isVersionSpec(verId))
+			return null;
+		return AncestorCache.makeKey(cacheNamespace, kind, verId, filePath);
+	}
+
+	private static boolean isVersionSpec(String verId)
+	{
+		int slash = verId.lastIndexOf('/');
+		if (slash < 1 || slash == verId.length() - 1)
+			return false;
+		for (int i = slash + 1; i < verId.length(); ++i)
+		{
+			if (!Character.isDigit(verId.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static String toCachedAncestor(String ancestor)
+	{
+		return (ancestor != null) ? ancestor : NO_ANCESTOR;
+	}
+
+	private static String fromCachedAncestor(@NotNull String cached)
+	{
+		return cached.equals(NO_ANCESTOR) ? null : cached;
+	}
+
+	/**
+	 * The answers of {@link #resolvePredecessors} compare the stream with itself
+	 * at two fixed transactions, i.e. history, so they can be cached for good as
+	 * long as the key names the transaction and not just the stream.
+	 */
+	private String getPredecessorCacheKey(String stream, String tranId, String versionKey)
+	{
+		return AncestorCache.makeKey(cacheNamespace, "pred", stream + "@" + tranId, versionKey);
+	}
+
+	/**
+	 * Key used by {@link #resolvePredecessors} to identify a single element version.
+	 */
+	public static String getElementVersionKey(String eid, String virtualVersion)
+	{
+		return eid + "@" + virtualVersion;
+	}
+
+	/**
+	 * Resolves the predecessors of all the versions in a range of transactions.
+	 * One 'accurev diff' is run per transaction, irrespective of the number of
+	 * elements in it.
+	 */
+	public Map<String, String> resolvePredecessors(@NotNull String stream, @NotNull Collection<TransactionData> transactions)
+		throws VcsException
+	{
+		Map<String, String> result = new HashMap<String, String>();
+		for (TransactionData tx : transactions)
+		{
+			result.putAll(resolvePredecessors(stream, tx));
+		}
+		return result;
+	}
+
+	/**
+	 * Resolves the predecessors of all the versions in a transaction with a single
+	 * 'accurev diff' across the transaction boundary. 'accurev anc' only accepts one
+	 * element, so asking it for each version costs a process per file.
+	 *
+	 * The result is keyed by {@link #getElementVersionKey}. Versions that are not
+	 * visible in the stream are left out, and versions without a predecessor
+	 * (newly added elements) map to null.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, String> resolvePredecessors(@NotNull String stream, @NotNull TransactionData tx)
+		throws VcsException
+	{
+		return resolvePredecessors(stream, tx.getTranId(), (Vector<VersionData>)tx.getVersions());
+	}
+
+	/**
+	 * Resolves the predecessors of some of the versions in a transaction.
+	 *
+	 * @see #resolvePredecessors(String, TransactionData)
+	 */
+	public Map<String, String> resolvePredecessors(@NotNull String stream, @NotNull String tranId, @NotNull Collection<VersionData> versions)
+		throws VcsException
+	{
+		Map<String, String> result = new HashMap<String, String>();
+		if (versions.isEmpty())
+			return result;
+
+		if (ancestorCache != null)
+		{
+			boolean complete = true;
+			for (VersionData version : versions)
+			{
+				String versionKey = getElementVersionKey(version.getVerEID(), version.getVerVirtual());
+				String cached = ancestorCache.get(getPredecessorCacheKey(stream, tranId, versionKey));
+				if (cached == null)
+				{
+					complete = false;
+					break;
+				}
+				if (!cached.equals(NOT_VISIBLE))
+					result.put(versionKey, fromCachedAncestor(cached));
+			}
+			if (complete)
+				return result;
+			result.clear();
+		}
+
+		long txId = Long.parseLong(tranId);
+		String timeSpec = txId + "-" + (txId - 1);
+		String[] args = {
+				context.getExecutable(),
+				"diff",
+				"-a",
+				"-fx",
+				"-i",
+				"-v", stream,
+				"-V", stream,
+				"-t", timeSpec,
+		};
+
+		String command = commandPrefix + "accurev diff -a -fx -i -v " + stream + " -V " + stream + " -t " + timeSpec;
+		printBuildMessage(command);
+
+		DiffPredecessorParser parser = new DiffPredecessorParser();
+		int returnCode = doExecute("accurev diff", args, parser);
+		printResultMessages(returnCode);
+
+		return collectPredecessors(stream, tranId, versions, parser);
+	}
+
+	/**
+	 * Picks the predecessors of the versions out of the 'accurev diff' answer, and
+	 * caches them if the answer was whole.
+	 */
+	Map<String, String> collectPredecessors(String stream, String tranId, Collection<VersionData> versions,
+		DiffPredecessorParser parser)
+	{
+		// Only a whole answer tells which versions are not visible; what is cached is
+		// kept for good, so nothing is cached from anything less
+		boolean cacheable = ancestorCache != null && parser.isComplete();
+		if (!parser.isComplete())
+		{
+			Loggers.VCS.warn("Incomplete 'accurev diff' answer for transaction " + tranId + " in stream " + stream
+				+ (parser.getMessageData() != null ? ": " + parser.getMessageData() : ""));
+		}
+
+		Map<String, String> result = new HashMap<String, String>();
+		for (VersionData version : versions)
+		{
+			String eid = version.getVerEID();
+			String versionKey = getElementVersionKey(eid, version.getVerVirtual());
+			boolean visible = parser.isChanged(eid);
+			if (visible)
+			{
+				result.put(versionKey, parser.getPredecessor(eid));
+			}
+			if (cacheable)
+			{
+				ancestorCache.put(getPredecessorCacheKey(stream, tranId, versionKey),
+						visible ? toCachedAncestor(parser.getPredecessor(eid)) : NOT_VISIBLE);
+			}
+		}
+		return result;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -488,7 +928,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"update",
 				"-fx",
 				"-t", highTx,
@@ -521,7 +961,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	public ElementStatusData getElementInfo(String depot, String stream, String element) throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"stat",
 				"-fx",
 				"-s", stream,
@@ -529,21 +969,13 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		};
 		StatusParser parser = new AcStatusParser();
 		
-		String command = commandPrefix + "accurev stat -fx -s" + stream + " " + element;
+		String command = commandPrefix + "accurev stat -fx -s " + stream + " " + element;
 		printBuildMessage(command);
 		
-		int returnCode = doExecute("accurev update -i", args, parser);		
+		int returnCode = doExecute("accurev stat", args, parser);		
 		printResultMessages(returnCode);
-		
-		System.out.println(this.getResponseText().toString());
 
 		Vector<ElementStatusData> vec = parser.getElementStatusCollection();
-
-		for (ElementStatusData stat : vec)
-		{
-			System.out.println("isDirectory = " + stat.isDirectory());
-		}
-
 		if (vec.size() > 0)
 		{
 			return vec.get(0);
@@ -551,10 +983,56 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		return null;
 	}
 
+	/**
+	 * Tells which of the elements are directories, with a single 'accurev stat'
+	 * for all of them. Returns whether each element is a directory, by its
+	 * depot-relative location ("/./dir/file"); elements that are not in the
+	 * stream are left out.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Boolean> getElementTypes(@NotNull String stream, @NotNull Collection<String> elements)
+		throws VcsException
+	{
+		Map<String, Boolean> result = new HashMap<String, Boolean>();
+		if (elements.isEmpty())
+			return result;
+
+		File listFile = writeListFile(elements);
+		try
+		{
+			String[] args = {
+					context.getExecutable(),
+					"stat",
+					"-fx",
+					"-s", stream,
+					"-l", listFile.getAbsolutePath(),
+			};
+			StatusParser parser = new AcStatusParser();
+
+			String command = commandPrefix + "accurev stat -fx -s " + stream + " -l " + listFile.getAbsolutePath()
+				+ " (" + elements.size() + " elements)";
+			printBuildMessage(command);
+
+			int returnCode = doExecute("accurev stat", args, parser);
+			printResultMessages(returnCode);
+
+			Vector<ElementStatusData> vec = parser.getElementStatusCollection();
+			for (ElementStatusData stat : vec)
+			{
+				result.put(stat.getRelativePath(), stat.isDirectory());
+			}
+			return result;
+		}
+		finally
+		{
+			listFile.delete();
+		}
+	}
+
 	public void createSnapshot(String snapshotName, String backingStreamName, String timeSpec) throws VcsException
 	{
 		String[] args = {
-			RunProcess.getAccuRevExecutable(),
+			context.getExecutable(),
 			"mksnap",
 			"-s", snapshotName,
 			"-b", backingStreamName,
@@ -572,7 +1050,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
             throws VcsException , ParserConfigurationException, SAXException, IOException
     {
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"diff",
                 "-a",
 				"-fx",
@@ -585,28 +1063,27 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
         String command = commandPrefix + "accurev diff -a -fx -i -v " + stream + " -V " + stream + " -t" + toVer + "-" + fromVer;
         printBuildMessage(command);
         
-        GenericXMLParser parser = new GenericXMLParser();
-        int returnCode = doExecute("accurev diff", args, parser);
+        // Parsed once, straight from the output; AccuRev leaves some '&'s unescaped,
+        // which XmlEscapingInputStream takes care of on the way in
+        OutputSinks.DocumentSink output = OutputSinks.toDocument();
+        mLastCommand = args;
+        mLastResponse = null;
+        int returnCode = ThrowIfError("accurev diff", runExec(args, workingDir.getAbsolutePath(), null, EXEC_PARSE, output), null);
         
         printResultMessages(returnCode);
         
-        XMLTag xTag = (XMLTag)parser.getTagList().get(0);
-        String sInput = xTag.toXML();
-        
-        /* TODO 25SEP09 DCN - AccuRev CLI is returning unescaped characters in XML response. There could be others so need to investigate this further */
-        sInput = sInput.replaceAll("&", "&amp;");
-
-        ByteArrayInputStream ssInput = new ByteArrayInputStream(sInput.getBytes());
-        DocumentBuilderFactory DocFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder DocBuilder = DocFactory.newDocumentBuilder();
-        Document DocToParse = DocBuilder.parse(ssInput);
-        return DocToParse;
+        Document document = output.getDocument();
+        if (document == null)
+        {
+            throw new VcsException("'accurev diff' command returned no response");
+        }
+        return document;
     }
     
-    public XMLTag accurevShow(String depot, String stream) throws VcsException
+    public StreamInfo accurevShow(String depot, String stream) throws VcsException
     {
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"show",
 				"-fx",
 				"-p", depot,
@@ -617,37 +1094,32 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
         String command = commandPrefix + "accurev -fx -p " + depot + " -s " + stream + " streams";
         printBuildMessage(command);
         
-        GenericXMLParser parser = new GenericXMLParser(); 
+        ShowStreamParser parser = new ShowStreamParser();
         int returnCode = doExecute("accurev show", args, parser);
         
         printResultMessages(returnCode);
         
-        XMLTag acResponse     = (XMLTag)parser.getTagList().get(0);
-        String responseAsText = acResponse.toXML();
-        boolean isCorrectType =  acResponse.getName().equals("streams");
-
-        int numberOfStreams = acResponse.getTags("stream").size();
-        if(!isCorrectType )
+        if(!"streams".equals(parser.getRootName()))
         {
-        	throw new VcsException("Accurev show command returned returned an element which was not of type \'stream\' :" + responseAsText);
+        	throw new VcsException("Accurev show command returned returned an element which was not of type \'stream\' :" + parser.getRootName()
+        		+ (parser.getMessageData() != null ? " " + parser.getMessageData() : ""));
         }
-        else if(numberOfStreams > 1)
+        else if(parser.getCount() > 1)
         {
         	throw new VcsException("Accurev show command returned more than one element of type \'stream\'");
         }
-        else if(numberOfStreams == 0)
-        {
-        	return null;//the requested stream does not exist
-        }
         
-        return acResponse;
+        return parser.getStream(); //null if the requested stream does not exist
     }
       
-    public XMLTag getStreamOverlaps(String stream) throws VcsException
+    /**
+     * Returns the locations of the elements with overlaps in the stream.
+     */
+    public List<String> getStreamOverlaps(String stream) throws VcsException
     {
         // Build the command
     	String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"stat",
 				"-fx",
 				"-s", stream,
@@ -657,69 +1129,107 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
         String command = commandPrefix + "stat -fx -s " + stream + " -o";
         printBuildMessage(command);
         
-        // Execute the command and parse the response
-        GenericXMLParser parser = new GenericXMLParser(); 
+        // Execute the command and read the locations of the overlapping elements
+        ElementListParser parser = new ElementListParser("element", "location");
         int returnCode = doExecute("accurev stat", args, parser);        
         printResultMessages(returnCode);
         
-        // Get the root of the response
-        XMLTag acResponse = (XMLTag)parser.getTagList().get(0);
-
         // Check if the response is in a correct format
-        if(!acResponse.getName().equals("AcResponse"))
+        if(!"AcResponse".equals(parser.getRootName()))
         {
-            String responseAsText = acResponse.toXML();
-        	throw new VcsException("Accurev stat command returned an invalid response' :" + responseAsText);
+        	throw new VcsException("Accurev stat command returned an invalid response' :" + parser.getRootName()
+        		+ (parser.getMessageData() != null ? " " + parser.getMessageData() : ""));
         }
         
-        return acResponse;
+        return parser.getValues();
     }
       
-    public boolean isPassThroughStream(String depot, String stream) throws VcsException
+    /**
+     * Returns the stream topology of the depot, loading it if it has never been
+     * loaded or if the depot watermark has moved since.
+     *
+     * @param watermark the last transaction of the depot, or null if not known
+     */
+    @NotNull
+    public StreamTopology getStreamTopology(@NotNull String depot, String watermark) throws VcsException
     {
-    	XMLTag acResponse = accurevShow(depot, stream);
-    	if(acResponse == null)
+    	StreamTopology topology = StreamTopology.getInstance(serverKey + "/" + depot);
+    	synchronized (topology)
     	{
-    		return false;//it can only be a passthrough stream if it exists.
+    		if (topology.needsReload(watermark))
+    		{
+    			loadStreamTopology(topology, depot, watermark);
+    		}
     	}
-        XMLTag acStream   = (XMLTag)acResponse.getTags("stream").get(0);
-        
-        String streamType = acStream.getAttributeValue("type");
-        if(streamType.equals("passthrough"))
-        {
-        	return true;
-        }
-        return false;    	
+    	return topology;
     }
-        
-    public String getParentStreamName(String depot, String stream) throws VcsException
+
+    /**
+     * Returns a topology that knows the stream, if it exists. A stream that is
+     * not known yet may have been created since the topology was loaded.
+     */
+    private StreamTopology getStreamTopologyFor(String depot, String stream) throws VcsException
     {
-    	XMLTag acResponse = accurevShow(depot, stream); 
-    	if(acResponse == null)
+    	StreamTopology topology = getStreamTopology(depot, null);
+    	if (!topology.exists(stream))
     	{
-    		return null; //Stream does not exist
+    		synchronized (topology)
+    		{
+    			if (!topology.exists(stream) && topology.shouldReloadOnMiss())
+    			{
+    				loadStreamTopology(topology, depot, null);
+    			}
+    		}
     	}
-        XMLTag acStream   = (XMLTag)acResponse.getTags("stream").get(0);
+    	return topology;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadStreamTopology(StreamTopology topology, String depot, String watermark) throws VcsException
+    {
+        String[] args = {
+				context.getExecutable(),
+				"show",
+				"-fx",
+				"-p", depot,
+                "streams"
+		};
+
+        String command = commandPrefix + "accurev show -fx -p " + depot + " streams";
+        printBuildMessage(command);
+
+        ShowStreamsParser parser = new ShowStreamsParser();
+        int returnCode = doExecute("accurev show streams", args, parser);
+        printResultMessages(returnCode);
+        checkReturnCode("accurev show streams", returnCode);
+
+        Vector<StreamData> streams = parser.getStreamInformationCollection();
+        topology.update(streams, watermark);
+        Loggers.VCS.debug("Loaded " + streams.size() + " streams of depot " + depot);
+    }
+
+    public boolean isPassThroughStream(String depot, String stream) throws VcsException
+    {
+    	//it can only be a passthrough stream if it exists.
+    	return getStreamTopologyFor(depot, stream).isPassThrough(stream);
+    }
         
-        return acStream.getAttributeValue("basis");
+    public String getParentStreamName(String depot, String stream) throws VcsException
+    {
+    	//null if the stream does not exist, or is the root stream of the depot
+    	return getStreamTopologyFor(depot, stream).getBasis(stream);
     }
         
     public boolean doesStreamExist(String depot, String stream) throws VcsException
     {
-    	XMLTag acResponse  = accurevShow(depot, stream);
-    	if(acResponse == null)
-    	{
-    		return false;
-    	}
-    	//if an acception has not been thrown then the stream exists
-        return true;
+    	return getStreamTopologyFor(depot, stream).exists(stream);
     }
         
     @SuppressWarnings("unchecked")
     public Vector<WorkspaceData> accurevShowWorkspaces(String depot) throws VcsException
     {
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"show",
 				"-fx",
 				"-p", depot,
@@ -772,7 +1282,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	public void changeWorkspace(String workspace, String stream, String path) throws VcsException
 	{
 		String[] args = {
-						RunProcess.getAccuRevExecutable(),
+						context.getExecutable(),
 						"chws",
 						"-w", workspace,
 						"-b", stream,
@@ -792,7 +1302,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	{
 
 		String[] args = {
-						RunProcess.getAccuRevExecutable(),
+						context.getExecutable(),
 						"mkws",
 						"-w", workspace,
 						"-b", stream,
@@ -812,7 +1322,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"pop",
 				"-R",
 				"\\.\\",
@@ -823,7 +1333,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		
 		String cmdName = "accurev pop";
 		mLastCommand = args; // Need to do this manually as we are calling ThrowIfError directly
-		int returnCode = ThrowIfError(cmdName, exec(args, checkoutDir.getAbsolutePath()), null);
+		int returnCode = ThrowIfError(cmdName, runExec(args, checkoutDir.getAbsolutePath(), null, EXEC_PLAIN), null);
 		
 		printResultMessages(returnCode);
 		checkReturnCode(cmdName, returnCode);
@@ -833,7 +1343,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"update",
 		};
 		
@@ -842,16 +1352,19 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		
 		String cmdName = "accurev update";
 		mLastCommand = args; // Need to do this manually as we are calling ThrowIfError directly
-		int returnCode = ThrowIfError(cmdName, exec(args, checkoutDir.getAbsolutePath()), null);		
+		int returnCode = ThrowIfError(cmdName, runExec(args, checkoutDir.getAbsolutePath(), null, EXEC_PLAIN), null);		
 		
 		printResultMessages(returnCode);
 		checkReturnCode(cmdName, returnCode);
 	}
 	
-    public GenericXMLParser getTranslist(String stream/*, SRunningBuild runningBuild*/) throws VcsException
+    /**
+     * Returns the ids of the transactions of the stream that are not promoted yet.
+     */
+    public List<String> getTranslist(String stream/*, SRunningBuild runningBuild*/) throws VcsException
     {
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"translist",
 				"-fx",
 				"-s", stream,
@@ -861,14 +1374,14 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
         String command = commandPrefix + "accurev translist -fx -s " + stream + " streams";
         printBuildMessage(command);
         
-        GenericXMLParser parser = new GenericXMLParser();
+        ElementListParser parser = new ElementListParser("transaction", "id");
         int returnCode = doExecute("accurev translist", args, parser);
         
         printResultMessages(returnCode);        
         
         if (returnCode == 0)
         {
-        	return parser;     	
+        	return parser.getValues();
         }        
         throw new VcsException(getErrorText().toString());
     }
@@ -888,7 +1401,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
     	}
 
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"promote",
 				"-Fx",
 				"-Z",
@@ -923,7 +1436,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
     	}
     	
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"promote",
 				commentArg,
 				"-s",
@@ -964,7 +1477,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
     public void forceTimestampOptimization(File workspaceDir) throws VcsException
     {
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"stat",
                 "-n"
 		};
@@ -974,7 +1487,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		
 		String cmdName = "accurev stat";		
 		mLastCommand = args; // Need to do this manually as we are calling ThrowIfError directly
-		int returnCode = ThrowIfError(cmdName, exec(args, workspaceDir.getAbsolutePath()), null);
+		int returnCode = ThrowIfError(cmdName, runExec(args, workspaceDir.getAbsolutePath(), null, EXEC_PLAIN), null);
 		
 		printResultMessages(returnCode);
 		checkReturnCode(cmdName, returnCode);
@@ -1007,7 +1520,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
     		throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"pop",
 				"-R",
 				"-O",
@@ -1019,7 +1532,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		
 		String cmdName = "accurev pop";
 		mLastCommand = args; // Need to do this manually as we are calling ThrowIfError directly
-		int returnCode = ThrowIfError(cmdName, exec(args, checkoutDir.getAbsolutePath()), null);		
+		int returnCode = ThrowIfError(cmdName, runExec(args, checkoutDir.getAbsolutePath(), null, EXEC_PLAIN), null);		
 		
 		printResultMessages(returnCode);
 		checkReturnCode(cmdName, returnCode);
@@ -1029,7 +1542,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	throws VcsException
 	{
 		String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"update",
 				"-9"
 		};
@@ -1039,7 +1552,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 		
 		String cmdName = "accurev update";
 		mLastCommand = args; // Need to do this manually as we are calling ThrowIfError directly
-		int returnCode = ThrowIfError(cmdName, exec(args, checkoutDir.getAbsolutePath()), null);		
+		int returnCode = ThrowIfError(cmdName, runExec(args, checkoutDir.getAbsolutePath(), null, EXEC_PLAIN), null);		
 		
 		printResultMessages(returnCode);
 		checkReturnCode(cmdName, returnCode);
@@ -1049,7 +1562,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
     public Vector<WorkspaceData> accurevShowReferenceTrees(String depot) throws VcsException
     {
         String[] args = {
-				RunProcess.getAccuRevExecutable(),
+				context.getExecutable(),
 				"show",
 				"-fx",
 				"-p", depot,
@@ -1103,7 +1616,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	public void changeReferenceTree(String reftree, String stream, String path) throws VcsException
 	{
 		String[] args = {
-						RunProcess.getAccuRevExecutable(),
+						context.getExecutable(),
 						"chref",
 						"-r", reftree,
 						"-b", stream,
@@ -1123,7 +1636,7 @@ public class AcRunProcessExe extends RunProcess implements AcRunProcess
 	{
 
 		String[] args = {
-						RunProcess.getAccuRevExecutable(),
+						context.getExecutable(),
 						"mkref",
 						"-r", workspace,
 						"-b", stream,
@@ -1,7 +1,6 @@
 package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -98,19 +97,35 @@ public class AcRunProcessUrl implements AcRunProcess
     public Document getListOfChangedElements(@NotNull String stream, String fromVer, String toVer)
             throws VcsException , ParserConfigurationException, SAXException, IOException
     {
-    	String xmlData = fetchFromUrl("http://localhost:8055/accurev/getListOfChangedElements?stream="+stream+"&from="+fromVer+"&to="+toVer);
-    	
-        /* NOTE: 25SEP09 DCN
-         *   AccuRev CLI is returning unescaped characters in XML response. 
-         *   There could be others so need to investigate this further. 
-         */
-    	xmlData = xmlData.replaceAll("&", "&amp;");
-    	
-        ByteArrayInputStream ssInput = new ByteArrayInputStream(xmlData.getBytes());
-        DocumentBuilderFactory DocFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder DocBuilder = DocFactory.newDocumentBuilder();
-        Document DocToParse = DocBuilder.parse(ssInput);
-        return DocToParse;    	
+    	String urlText = "http://localhost:8055/accurev/getListOfChangedElements?stream="+stream+"&from="+fromVer+"&to="+toVer;
+    	Loggers.VCS.info("[XX] fetching data from URL: " + urlText);
+
+    	HttpURLConnection connection = (HttpURLConnection) new URL(urlText).openConnection();
+    	try
+    	{
+    		connection.setRequestMethod("GET");
+    		connection.setRequestProperty("Content-Type", "application/xml");
+
+    		/* NOTE: 25SEP09 DCN
+    		 *   AccuRev CLI is returning unescaped characters in XML response.
+    		 *   XmlEscapingInputStream escapes them while the response is parsed.
+    		 */
+    		InputStream content = new XmlEscapingInputStream(connection.getInputStream());
+    		try
+    		{
+    			DocumentBuilderFactory DocFactory = DocumentBuilderFactory.newInstance();
+    			DocumentBuilder DocBuilder = DocFactory.newDocumentBuilder();
+    			return DocBuilder.parse(content);
+    		}
+    		finally
+    		{
+    			content.close();
+    		}
+    	}
+    	finally
+    	{
+    		connection.disconnect();
+    	}
     }
     
     @SuppressWarnings("unchecked")
@@ -170,7 +185,7 @@ public class AcRunProcessUrl implements AcRunProcess
     	throw new UnsupportedOperationException();
 	}
 
-    public XMLTag accurevShow(String depot, String stream) 
+    public StreamInfo accurevShow(String depot, String stream) 
     		throws VcsException
 	{
     	throw new UnsupportedOperationException();
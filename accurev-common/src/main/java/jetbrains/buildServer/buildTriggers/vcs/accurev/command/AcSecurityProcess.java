@@ -15,11 +15,11 @@
  */
 package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
 
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Settings;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
 
-import com.accurev.common.process.RunProcess;
 import com.accurev.common.process.SecurityProcess;
 
 /**
@@ -32,11 +32,19 @@ public class AcSecurityProcess extends SecurityProcess
     // Warning: The actual result has line-feeds at the end.
     // Don't use equal() for comparison, use startsWith()
 
-    public AcSecurityProcess()
+    private final AcCommandContext context;
+
+    public AcSecurityProcess(AcCommandContext context)
     {
+        this.context = context;
         enableDebug = true; // for testing
     }
 
+    public String[] addSecurityArgsToCommand(String[] args)
+    {
+        return context.addSecurityArgs(args, sessionToken);
+    }
+
     private int ThrowIfError(String cmdName, int result) throws VcsException
     {
         if (result != ERR_SUCCESS)
@@ -55,9 +63,27 @@ public class AcSecurityProcess extends SecurityProcess
         return result;
     }
 
+    /**
+     * Logs in. Like the other session commands (secinfo, server version) it runs
+     * outside the process governor: the session is locked while it runs, and the
+     * command that needs the new token may already hold all the slots.
+     */
     public String Login(String userName, String password) throws VcsException
     {
-        int result = login(userName, password);
+        int result;
+        CommandWatchdog.Watch watch = watch("login");
+        try
+        {
+            result = login(userName, password);
+            if (result == ERR_PROCESS_WAIT_TERMINATED)
+                watch.cancel();
+        }
+        finally
+        {
+            watch.stop();
+        }
+        watch.check("accurev login");
+        context.getCircuitBreaker().afterCommand(result == ERR_CONNECTING_SERVER);
         ThrowIfError("accurev login", result);
         System.out.println("Accurev Login Command PASSED !!!!" + result);
         String token = getResponseText().toString();
@@ -71,19 +97,101 @@ public class AcSecurityProcess extends SecurityProcess
     public void Logout() throws VcsException
     {
         String[] args = {
-            RunProcess.getAccuRevExecutable(),
+            context.getExecutable(),
             "logout",
         };
-        ThrowIfError("accurev logout", exec(args, null));
+        ThrowIfError("accurev logout", execGoverned(args, true));
     }
 
     public String getSecurityInfo() throws VcsException
     {
         String[] args = {
-            RunProcess.getAccuRevExecutable(),
+            context.getExecutable(),
             "secinfo",
         };
-        exec(args, null);
+        execGoverned(args, false);
         return getResponseText().toString();
     }
+
+    /**
+     * Returns the version of the AccuRev server, as major, minor, patch. Runs
+     * outside the process governor, see {@link #Login}.
+     */
+    public int[] getServerVersion() throws VcsException
+    {
+        int[] version;
+        CommandWatchdog.Watch watch = watch("xml");
+        try
+        {
+            version = getAccuRevServerVersion();
+        }
+        finally
+        {
+            watch.stop();
+        }
+        watch.check("accurev xml");
+        return version;
+    }
+
+    private int execGoverned(String[] args, boolean governed) throws VcsException
+    {
+        int result;
+        ProcessGovernor.Permit permit = governed ? context.acquireProcess() : null;
+        CommandWatchdog.Watch watch = watch(args[1]);
+        try
+        {
+            result = exec(args, null);
+            if (result == ERR_PROCESS_WAIT_TERMINATED)
+                watch.cancel();
+        }
+        finally
+        {
+            watch.stop();
+            if (permit != null)
+                permit.release();
+        }
+        watch.check("accurev " + args[1]);
+        context.getCircuitBreaker().afterCommand(result == ERR_CONNECTING_SERVER);
+        return result;
+    }
+
+    /**
+     * Checks whether the AccuRev server answers a cheap 'accurev info'. Runs
+     * outside the process governor and the circuit breaker, which use it to
+     * find out whether the server is back.
+     */
+    public boolean ping() throws VcsException
+    {
+        Settings settings = context.getSettings();
+        String[] args = {
+            context.getExecutable(),
+            "info",
+            "-H", settings.getServerName() + ":" + settings.getServerPort(),
+        };
+
+        int result;
+        CommandWatchdog.Watch watch = watch("info");
+        try
+        {
+            result = exec(args, null);
+        }
+        finally
+        {
+            watch.stop();
+        }
+        watch.check("accurev info");
+        return result == ERR_SUCCESS;
+    }
+
+    private CommandWatchdog.Watch watch(String command)
+    {
+        return context.watch(command, new CommandWatchdog.Target() {
+            public void kill()
+            {
+                Process process = runProcess;
+                if (process != null)
+                    process.destroy();
+            }
+        });
+    }
 }
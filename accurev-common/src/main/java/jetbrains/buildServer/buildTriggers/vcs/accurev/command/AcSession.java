@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Settings;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.accurev.common.data.SessionToken;
+
+/**
+ * Login session on an AccuRev server for one user, shared by all the commands
+ * run for that server and user.
+ *
+ * The server version and the session token are looked up once, instead of
+ * running 'accurev secinfo' (and possibly 'accurev login') before every command.
+ * The token is only renewed when a command reports it is not authenticated.
+ *
+ * @author Francois Retief
+ */
+public class AcSession
+{
+	private static final Map<String, AcSession> sessions = new HashMap<String, AcSession>();
+
+	/**
+	 * Returns the session for the server and user of the given root settings.
+	 * Roots with their own ACCUREV_HOME get their own session, as AccuRev keeps
+	 * the login state there.
+	 */
+	@NotNull
+	public static AcSession getInstance(@NotNull Settings settings)
+	{
+		String key = settings.getServerName() + ":" + settings.getServerPort() + ":" + settings.getUsername()
+			+ ((settings.getAccuRevHome() != null) ? ":" + settings.getAccuRevHome() : "");
+		synchronized (sessions)
+		{
+			AcSession session = sessions.get(key);
+			if (session == null)
+			{
+				session = new AcSession(settings.getServerName() + ":" + settings.getServerPort(), settings.getUsername());
+				sessions.put(key, session);
+			}
+			return session;
+		}
+	}
+
+	private final String server;
+	private final String username;
+	private int[] serverVersion;
+	private SessionToken token;
+
+	private AcSession(String server, String username)
+	{
+		this.server = server;
+		this.username = username;
+	}
+
+	/**
+	 * Returns the version of the AccuRev server, as major, minor, patch.
+	 */
+	@NotNull
+	public synchronized int[] getServerVersion(@NotNull AcCommandContext context) throws VcsException
+	{
+		if (serverVersion == null)
+		{
+			AcSecurityProcess sec = new AcSecurityProcess(context);
+			serverVersion = sec.getServerVersion();
+			if (serverVersion == null || serverVersion.length < 2)
+			{
+				serverVersion = null;
+				throw new VcsException("Unable to determine the version of AccuRev server " + server);
+			}
+		}
+		return serverVersion;
+	}
+
+	/**
+	 * Session tokens are only supported by AccuRev 4.7 and later.
+	 */
+	public boolean supportsTokens(@NotNull AcCommandContext context) throws VcsException
+	{
+		int[] ver = getServerVersion(context);
+		return (ver[0] == 4 && ver[1] >= 7) || (ver[0] > 4);
+	}
+
+	/**
+	 * Returns the session token to run commands with, logging in if needed. Null
+	 * if the server does not support session tokens.
+	 */
+	@Nullable
+	public synchronized SessionToken getToken(@NotNull AcCommandContext context) throws VcsException
+	{
+		if (token == null && supportsTokens(context))
+		{
+			token = login(context, false);
+		}
+		return token;
+	}
+
+	/**
+	 * Renews the session token after a command was refused with the given one. If
+	 * another command renewed it in the meantime, that token is returned instead.
+	 */
+	@Nullable
+	public synchronized SessionToken refreshToken(@NotNull AcCommandContext context, @Nullable SessionToken rejected) throws VcsException
+	{
+		if (!supportsTokens(context))
+			return null;
+
+		if (token == null || token == rejected)
+		{
+			Loggers.VCS.info("Renewing the AccuRev session of " + username + " on " + server);
+			token = login(context, true);
+		}
+		return token;
+	}
+
+	private SessionToken login(AcCommandContext context, boolean force) throws VcsException
+	{
+		Settings settings = context.getSettings();
+		AcSecurityProcess sec = new AcSecurityProcess(context);
+		String securityToken = "";
+		if (force || sec.getSecurityInfo().startsWith(sec.NotAuthenticated))
+		{
+			securityToken = sec.Login(settings.getUsername(), settings.getPassword());
+		}
+		return new SessionToken(server, securityToken, username);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persistent cache of element version ancestors.
+ *
+ * The ancestor of an element version never changes once the version exists, so
+ * the answers of 'accurev anc' (and friends) can be kept for good. Entries are
+ * held in memory in LRU order and appended to a {@link Journal}, which is rewritten
+ * once it holds too many stale records.
+ *
+ * @author Francois Retief
+ */
+public class AncestorCache
+{
+	private static final int MAGIC = 0x41434143; // "ACAC"
+	private static final int FORMAT_VERSION = 2; // 2: predecessor keys name the transaction
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, String> entries;
+	private final Journal journal;
+
+	public AncestorCache(@NotNull File cacheDir, final int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+		this.journal = new Journal(new File(cacheDir, "ancestors.bin"), MAGIC, FORMAT_VERSION, "ancestor cache");
+
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+		{
+			Loggers.VCS.warn("Unable to create ancestor cache directory " + cacheDir.getAbsolutePath());
+		}
+		load();
+	}
+
+	/**
+	 * Builds a cache key. The namespace identifies the server and depot, so that
+	 * roots on different depots never see each other's entries.
+	 */
+	public static String makeKey(@NotNull String namespace, @NotNull String kind, @NotNull String version, @NotNull String element)
+	{
+		return namespace + '|' + kind + '|' + version + '|' + element;
+	}
+
+	/**
+	 * Returns the cached value, or null if it is not in the cache.
+	 */
+	@Nullable
+	public synchronized String get(@NotNull String key)
+	{
+		return entries.get(key);
+	}
+
+	public synchronized void put(@NotNull String key, @NotNull String value)
+	{
+		if (value.equals(entries.put(key, value)))
+			return; /* nothing new to persist */
+
+		journal.append(key, value);
+		if (journal.getRecords() > 2 * maxEntries)
+		{
+			journal.compact(entries);
+		}
+	}
+
+	public synchronized void flush()
+	{
+		journal.flush();
+	}
+
+	public synchronized void close()
+	{
+		journal.close();
+	}
+
+	private void load()
+	{
+		boolean whole = journal.load(new Journal.Visitor() {
+			public void record(@NotNull String key, @NotNull String value)
+			{
+				entries.put(key, value);
+			}
+		});
+		if (!whole || journal.getRecords() > entries.size())
+		{
+			journal.compact(entries);
+		}
+		Loggers.VCS.info("Loaded " + entries.size() + " entries from ancestor cache " + journal.getFile().getAbsolutePath());
+	}
+}
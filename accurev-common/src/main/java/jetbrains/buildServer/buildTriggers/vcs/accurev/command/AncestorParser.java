@@ -0,0 +1,69 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import com.accurev.common.parsers.AccuRevHandler;
+
+/**
+ * Reads the answer of 'accurev anc -fx': the stream and version of the
+ * ancestor, or nothing when AccuRev reports there is none. The rest of the
+ * response is skipped.
+ *
+ * @author Francois Retief
+ */
+public class AncestorParser extends AccuRevHandler
+{
+	private int depth;
+	private boolean notFound;
+	private String stream;
+	private String version;
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+	{
+		super.startElement(uri, localName, qName, attributes);
+		if (++depth != 2)
+			return;
+
+		if ("message".equals(qName) && "true".equals(attributes.getValue("error")))
+		{
+			notFound = true;
+		}
+		else if ("element".equals(qName) && stream == null)
+		{
+			stream = attributes.getValue("stream");
+			version = attributes.getValue("version");
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException
+	{
+		super.endElement(uri, localName, qName);
+		--depth;
+	}
+
+	/**
+	 * Returns the ancestor as "stream/version", or null if there is none.
+	 */
+	public String getAncestor()
+	{
+		if (notFound || stream == null)
+			return null;
+		return stream + "/" + version;
+	}
+}
@@ -15,6 +15,8 @@
  */
 package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
 
+import java.util.List;
+
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.log.Loggers;
@@ -68,6 +70,64 @@ public class CommandUtil
         return res;
     }
 
+    /**
+     * Runs the command once the governor of the context's server has a process
+     * slot for it.
+     */
+    public static ExecResult runCommand(@NotNull AcCommandContext context, @NotNull GeneralCommandLine cli)
+        throws VcsException
+    {
+        String cmdStr = cli.getCommandLineString();
+        List<String> params = cli.getParametersList();
+        final Process[] started = new Process[1];
+
+        ProcessGovernor.Permit permit = context.acquireProcess();
+        CommandWatchdog.Watch watch = context.watch(params.isEmpty() ? null : params.get(0), new CommandWatchdog.Target() {
+            public void kill()
+            {
+                synchronized (started) {
+                    if (started[0] != null)
+                        started[0].destroy();
+                }
+            }
+        });
+        ExecResult res;
+        try {
+            Loggers.VCS.debug("Run command: " + cmdStr);
+            res = SimpleCommandLineProcessRunner.runCommand(cli, null, new SimpleCommandLineProcessRunner.RunCommandEvents() {
+                public void onProcessStarted(Process ps) {
+                    synchronized (started) {
+                        started[0] = ps;
+                    }
+                }
+
+                public void onProcessFinished(Process ps) {
+                }
+
+                public Integer getOutputIdleSecondsTimeout() {
+                    return null;
+                }
+            });
+        } finally {
+            watch.stop();
+            permit.release();
+        }
+        watch.check(cmdStr);
+        context.getCircuitBreaker().afterCommand(isConnectionError(res.getStderr()));
+        CommandUtil.checkCommandFailed(cmdStr, res);
+        Loggers.VCS.debug(res.getStdout());
+        return res;
+    }
+
+    /**
+     * Whether the error output of a command says it could not reach the server,
+     * the same way RunProcess decides on ERR_CONNECTING_SERVER.
+     */
+    public static boolean isConnectionError(String stderr)
+    {
+        return stderr != null && stderr.indexOf("network error") >= 0;
+    }
+
     public static String errorToString(int error)
     {
         switch (error)
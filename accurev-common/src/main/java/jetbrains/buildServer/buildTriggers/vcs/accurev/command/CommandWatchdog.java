@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Kills AccuRev processes that run past their timeout, or whose caller was
+ * interrupted (TeamCity interrupts the VCS threads and checkouts it wants to
+ * stop). A single daemon thread checks all the running commands.
+ *
+ * The caller starts a watch before it starts the process, stops it once the
+ * process has ended, and then calls {@link Watch#check(String)} so that a
+ * killed command fails with a clear message instead of a confusing exit code.
+ *
+ * @author Francois Retief
+ */
+public class CommandWatchdog
+{
+	/** How often the running commands are checked. */
+	private static final long CHECK_INTERVAL = 500;
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "AccuRev command watchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Ends the process of a command. Java can only destroy the process it started
+	 * itself; the AccuRev CLI does not start processes of its own.
+	 */
+	public interface Target
+	{
+		void kill();
+	}
+
+	public static class Watch implements Runnable
+	{
+		private final Thread caller;
+		private final long timeout;
+		private final long deadline;
+		private final Target target;
+		private ScheduledFuture<?> future;
+		private boolean stopped;
+		private boolean timedOut;
+		private boolean cancelled;
+
+		private Watch(Thread caller, long timeout, Target target)
+		{
+			this.caller = caller;
+			this.timeout = timeout;
+			this.deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+			this.target = target;
+		}
+
+		public synchronized void run()
+		{
+			if (stopped)
+				return;
+
+			if (!timedOut && System.currentTimeMillis() >= deadline)
+				timedOut = true;
+			if (!cancelled && caller.isInterrupted())
+				cancelled = true;
+
+			// Keep killing until stopped, in case the process had not started yet
+			if (timedOut || cancelled)
+				target.kill();
+		}
+
+		/**
+		 * Marks the command as cancelled, when the caller noticed the interrupt
+		 * before the watchdog did.
+		 */
+		public synchronized void cancel()
+		{
+			if (!stopped && !timedOut)
+			{
+				cancelled = true;
+				target.kill();
+			}
+		}
+
+		/**
+		 * Stops watching; once this returns the target is not killed anymore.
+		 */
+		public synchronized void stop()
+		{
+			stopped = true;
+			future.cancel(false);
+		}
+
+		/**
+		 * Throws if the command was killed because of a timeout or a cancel. The
+		 * interrupt status of the caller is kept for the code up the stack.
+		 */
+		public synchronized void check(@NotNull String cmdName) throws VcsException
+		{
+			if (cancelled)
+			{
+				caller.interrupt();
+				throw new VcsException("'" + cmdName + "' was cancelled");
+			}
+			if (timedOut)
+			{
+				String message = "'" + cmdName + "' did not finish within " + (timeout / 1000) + " seconds and was stopped";
+				Loggers.VCS.warn(message);
+				throw new VcsException(message);
+			}
+		}
+	}
+
+	/**
+	 * Starts watching a command run by the current thread.
+	 *
+	 * @param timeout the time the command may take, in milliseconds; 0 for no limit
+	 */
+	@NotNull
+	public static Watch watch(long timeout, @NotNull Target target)
+	{
+		Watch watch = new Watch(Thread.currentThread(), timeout, target);
+		synchronized (watch)
+		{
+			watch.future = scheduler.scheduleWithFixedDelay(watch, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		return watch;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import com.accurev.common.parsers.AccuRevHandler;
+
+/**
+ * Reads the answer of 'accurev diff -a -fx -i' across a transaction boundary:
+ * for each element that changed in the stream, the version it had before
+ * (Stream1), or none if it was added. Changes of the element id only are
+ * skipped, and so is the rest of the response.
+ *
+ * @author Francois Retief
+ */
+public class DiffPredecessorParser extends AccuRevHandler
+{
+	private final Map<String, String> predecessors = new HashMap<String, String>();
+	private int depth;
+	private String rootName;
+	private boolean failed;
+	private boolean complete;
+
+	// The change being read
+	private String elementEid;
+	private boolean skipChange;
+	private boolean hasOld;
+	private String oldVersion;
+	private String oldEid;
+	private boolean hasNew;
+	private String newEid;
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+	{
+		super.startElement(uri, localName, qName, attributes);
+		++depth;
+		if (depth == 1)
+		{
+			rootName = qName;
+		}
+		else if (depth == 2)
+		{
+			if ("message".equals(qName) && "true".equals(attributes.getValue("error")))
+				failed = true;
+			else if ("Element".equals(qName))
+				elementEid = attributes.getValue("eid");
+		}
+		else if (depth == 3 && "Change".equals(qName))
+		{
+			skipChange = "eid".equals(attributes.getValue("What")); /* not a real change */
+			hasOld = false;
+			oldVersion = null;
+			oldEid = null;
+			hasNew = false;
+			newEid = null;
+		}
+		else if (depth == 4 && "Stream1".equals(qName))
+		{
+			hasOld = true;
+			oldVersion = attributes.getValue("Version");
+			oldEid = attributes.getValue("eid");
+		}
+		else if (depth == 4 && "Stream2".equals(qName))
+		{
+			hasNew = true;
+			newEid = attributes.getValue("eid");
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException
+	{
+		super.endElement(uri, localName, qName);
+		if (depth == 3 && "Change".equals(qName) && !skipChange && (hasOld || hasNew))
+		{
+			String eid = hasNew ? newEid : oldEid;
+			if (eid == null)
+				eid = elementEid;
+			if (eid != null)
+				predecessors.put(eid, hasOld ? oldVersion : null);
+		}
+		else if (depth == 1)
+		{
+			complete = "acResponse".equals(rootName) && !failed;
+		}
+		--depth;
+	}
+
+	/**
+	 * Whether the whole answer was read and AccuRev reported no error; only
+	 * then can an element that is missing from it be taken as not visible.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Whether the element changed in the stream in the transaction.
+	 */
+	public boolean isChanged(@NotNull String eid)
+	{
+		return predecessors.containsKey(eid);
+	}
+
+	/**
+	 * Returns the version the element had before the transaction, or null if
+	 * it was added by it (or did not change).
+	 */
+	@Nullable
+	public String getPredecessor(@NotNull String eid)
+	{
+		return predecessors.get(eid);
+	}
+}
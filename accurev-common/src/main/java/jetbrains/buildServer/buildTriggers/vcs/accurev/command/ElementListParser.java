@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import com.accurev.common.parsers.AccuRevHandler;
+
+/**
+ * Collects one attribute of the elements of a given name directly under the
+ * root of a response, e.g. the 'location' of the elements of 'accurev stat -o'
+ * or the 'id' of the transactions of 'accurev translist'.
+ *
+ * @author Francois Retief
+ */
+public class ElementListParser extends AccuRevHandler
+{
+	private final String element;
+	private final String attribute;
+	private final List<String> values = new ArrayList<String>();
+	private int depth;
+	private String rootName;
+
+	public ElementListParser(@NotNull String element, @NotNull String attribute)
+	{
+		this.element = element;
+		this.attribute = attribute;
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+	{
+		super.startElement(uri, localName, qName, attributes);
+		++depth;
+		if (depth == 1)
+		{
+			rootName = qName;
+		}
+		else if (depth == 2 && element.equals(qName))
+		{
+			String value = attributes.getValue(attribute);
+			if (value != null)
+				values.add(value);
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException
+	{
+		super.endElement(uri, localName, qName);
+		--depth;
+	}
+
+	public String getRootName()
+	{
+		return rootName;
+	}
+
+	@NotNull
+	public List<String> getValues()
+	{
+		return Collections.unmodifiableList(values);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.accurev.common.data.TransactionData;
+
+import jetbrains.buildServer.vcs.VcsException;
+
+/**
+ * Receives the transactions of an 'accurev hist' one by one, as they are parsed.
+ *
+ * @author Francois Retief
+ */
+public interface HistoryConsumer
+{
+	/**
+	 * Called for every transaction, in the order 'accurev hist' reports them
+	 * (newest first). Throwing stops the command.
+	 */
+	public void transaction(@NotNull TransactionData tx) throws VcsException;
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.Map;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Append-only file of key/value records, behind the persistent caches.
+ *
+ * The file starts with a magic number and a format version, followed by the
+ * records as pairs of UTF strings. A later record for a key replaces an earlier
+ * one; the file is rewritten with only the live entries once it holds too many
+ * stale records. A journal that was cut off is read up to its last whole record.
+ * Errors are logged and leave the cache to work from memory.
+ *
+ * Not thread safe; the cache that owns the journal synchronizes on its own.
+ *
+ * @author Francois Retief
+ */
+public class Journal
+{
+	/** Receives the records of the journal, in the order they were written. */
+	public interface Visitor
+	{
+		void record(@NotNull String key, @NotNull String value);
+	}
+
+	private final File file;
+	private final int magic;
+	private final int formatVersion;
+	private final String description;
+
+	private DataOutputStream out;
+	private int records;
+
+	/**
+	 * @param description names the journal in log messages, e.g. "ancestor cache"
+	 */
+	public Journal(@NotNull File file, int magic, int formatVersion, @NotNull String description)
+	{
+		this.file = file;
+		this.magic = magic;
+		this.formatVersion = formatVersion;
+		this.description = description;
+	}
+
+	@NotNull
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Returns the number of records in the file, stale ones included.
+	 */
+	public int getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * Reads the records of the journal.
+	 *
+	 * @return false if the journal must be rewritten before anything is appended,
+	 *         because it was cut off, has an unknown format or could not be read
+	 */
+	public boolean load(@NotNull Visitor visitor)
+	{
+		records = 0;
+		if (!file.isFile())
+			return true;
+
+		try
+		{
+			PushbackInputStream input = new PushbackInputStream(new BufferedInputStream(new FileInputStream(file)));
+			DataInputStream in = new DataInputStream(input);
+			try
+			{
+				if (in.readInt() != magic || in.readInt() != formatVersion)
+				{
+					Loggers.VCS.info("Discarding " + description + " with unknown format: " + file.getAbsolutePath());
+					return false;
+				}
+
+				// A record cut off anywhere, even in its key, makes the journal
+				// truncated; only the end of the last whole record is a clean end
+				for (int next = input.read(); next >= 0; next = input.read())
+				{
+					input.unread(next);
+					String key = in.readUTF();
+					String value = in.readUTF();
+					visitor.record(key, value);
+					records++;
+				}
+				return true;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (EOFException ex)
+		{
+			/* a half written record (or header) must not be appended to */
+			return false;
+		}
+		catch (IOException ex)
+		{
+			Loggers.VCS.warn("Unable to read " + description + " " + file.getAbsolutePath() + ": " + ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Appends a record. It is buffered until the journal is flushed or closed.
+	 */
+	public void append(@NotNull String key, @NotNull String value)
+	{
+		try
+		{
+			open();
+			out.writeUTF(key);
+			out.writeUTF(value);
+			records++;
+		}
+		catch (IOException ex)
+		{
+			Loggers.VCS.warn("Unable to write to " + description + " " + file.getAbsolutePath() + ": " + ex.getMessage());
+			close();
+		}
+	}
+
+	public void flush()
+	{
+		if (out == null)
+			return;
+
+		try
+		{
+			out.flush();
+		}
+		catch (IOException ex)
+		{
+			Loggers.VCS.warn("Unable to flush " + description + " " + file.getAbsolutePath() + ": " + ex.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Rewrites the journal so that it only holds the given entries.
+	 */
+	public void compact(@NotNull Map<String, String> entries)
+	{
+		close();
+
+		File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		try
+		{
+			DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try
+			{
+				tmp.writeInt(magic);
+				tmp.writeInt(formatVersion);
+				for (Map.Entry<String, String> entry : entries.entrySet())
+				{
+					tmp.writeUTF(entry.getKey());
+					tmp.writeUTF(entry.getValue());
+				}
+			}
+			finally
+			{
+				tmp.close();
+			}
+
+			if (file.exists() && !file.delete())
+				throw new IOException("Unable to replace " + file.getAbsolutePath());
+			if (!tmpFile.renameTo(file))
+				throw new IOException("Unable to rename " + tmpFile.getAbsolutePath());
+
+			records = entries.size();
+		}
+		catch (IOException ex)
+		{
+			Loggers.VCS.warn("Unable to compact " + description + " " + file.getAbsolutePath() + ": " + ex.getMessage());
+		}
+	}
+
+	public void close()
+	{
+		if (out == null)
+			return;
+
+		try
+		{
+			out.close();
+		}
+		catch (IOException ex)
+		{
+			Loggers.VCS.warn("Unable to close " + description + " " + file.getAbsolutePath() + ": " + ex.getMessage());
+		}
+		out = null;
+	}
+
+	private void open() throws IOException
+	{
+		if (out != null)
+			return;
+
+		boolean isNew = !file.isFile() || file.length() == 0;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		if (isNew)
+		{
+			out.writeInt(magic);
+			out.writeInt(formatVersion);
+			records = 0;
+		}
+	}
+}
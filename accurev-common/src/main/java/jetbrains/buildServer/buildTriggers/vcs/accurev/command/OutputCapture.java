@@ -0,0 +1,260 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the output of a command for diagnostics, in bounded memory. The
+ * beginning and the end of the output are kept; when the output does not fit,
+ * all of it is written to a temporary file instead and the middle is left
+ * out of {@link #getText()}.
+ *
+ * @author Francois Retief
+ */
+public class OutputCapture implements OutputSink
+{
+	/** Default bytes kept in memory, half for the head and half for the tail. */
+	private static final int DEFAULT_LIMIT = 256 * 1024;
+
+	private final byte[] head;
+	private final byte[] tail;
+	private int headSize;
+	private int tailStart;
+	private int tailSize;
+	private long size;
+	private File file;
+	private OutputStream spill;
+	private boolean spillFailed;
+
+	/**
+	 * Creates a capture with the limit of the 'teamcity.accurev.output.maxInMemory'
+	 * property.
+	 */
+	@NotNull
+	public static OutputCapture create()
+	{
+		return new OutputCapture(TeamCityProperties.getInteger("teamcity.accurev.output.maxInMemory", DEFAULT_LIMIT));
+	}
+
+	/**
+	 * @param limit the number of bytes kept in memory
+	 */
+	public OutputCapture(int limit)
+	{
+		int half = Math.max(limit, 2) / 2;
+		head = new byte[half];
+		tail = new byte[half];
+	}
+
+	public boolean consume(@NotNull InputStream output) throws IOException
+	{
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = output.read(buffer)) >= 0)
+			{
+				write(buffer, 0, count);
+			}
+		}
+		finally
+		{
+			finish();
+		}
+		return true;
+	}
+
+	public synchronized void write(@NotNull byte[] b, int off, int len) throws IOException
+	{
+		if (spill == null && !spillFailed && size + len > head.length + tail.length)
+			startSpill();
+		if (spill != null)
+		{
+			try
+			{
+				spill.write(b, off, len);
+			}
+			catch (IOException ex)
+			{
+				stopSpill(ex);
+			}
+		}
+		size += len;
+
+		int toHead = Math.min(len, head.length - headSize);
+		System.arraycopy(b, off, head, headSize, toHead);
+		headSize += toHead;
+		off += toHead;
+		len -= toHead;
+
+		// Only the last bytes can end up in the ring
+		if (len > tail.length)
+		{
+			off += len - tail.length;
+			len = tail.length;
+		}
+		while (len > 0)
+		{
+			int end = (tailStart + tailSize) % tail.length;
+			int chunk = Math.min(len, tail.length - end);
+			System.arraycopy(b, off, tail, end, chunk);
+			off += chunk;
+			len -= chunk;
+			tailSize += chunk;
+			if (tailSize > tail.length)
+			{
+				tailStart = (tailStart + tailSize - tail.length) % tail.length;
+				tailSize = tail.length;
+			}
+		}
+	}
+
+	/**
+	 * Closes the temporary file, if any; the output is complete.
+	 */
+	public synchronized void finish() throws IOException
+	{
+		if (spill != null)
+		{
+			spill.close();
+			spill = null;
+		}
+	}
+
+	/**
+	 * Deletes the temporary file, if any.
+	 */
+	public synchronized void dispose()
+	{
+		try
+		{
+			finish();
+		}
+		catch (IOException ex)
+		{
+			/* deleted anyway */
+		}
+		if (file != null)
+		{
+			file.delete();
+			file = null;
+		}
+	}
+
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	public synchronized boolean isTruncated()
+	{
+		return size > headSize + tailSize;
+	}
+
+	/**
+	 * Returns the file with the whole output, or null if it fitted in memory.
+	 */
+	@Nullable
+	public synchronized File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Returns the output as text; if it did not fit in memory, its beginning and
+	 * end with a note on where to find the rest.
+	 */
+	@NotNull
+	public synchronized String getText()
+	{
+		String text = new String(head, 0, headSize);
+		if (tailSize == 0)
+			return text;
+
+		StringBuilder result = new StringBuilder(text);
+		if (isTruncated())
+		{
+			result.append("\n... [").append(size - headSize - tailSize).append(" bytes left out");
+			if (file != null)
+				result.append(", full output in ").append(file.getAbsolutePath());
+			result.append("] ...\n");
+		}
+		int first = Math.min(tailSize, tail.length - tailStart);
+		byte[] ordered = new byte[tailSize];
+		System.arraycopy(tail, tailStart, ordered, 0, first);
+		System.arraycopy(tail, 0, ordered, first, tailSize - first);
+		result.append(new String(ordered));
+		return result.toString();
+	}
+
+	public String toString()
+	{
+		return getText();
+	}
+
+	private void startSpill()
+	{
+		try
+		{
+			file = File.createTempFile("accurev-output", ".log");
+			file.deleteOnExit(); // kept for diagnostics until then, unless disposed
+			spill = new FileOutputStream(file);
+			spill.write(head, 0, headSize);
+			int first = Math.min(tailSize, tail.length - tailStart);
+			spill.write(tail, tailStart, first);
+			spill.write(tail, 0, tailSize - first);
+		}
+		catch (IOException ex)
+		{
+			stopSpill(ex);
+		}
+	}
+
+	private void stopSpill(IOException ex)
+	{
+		// Keep going with the head and tail only
+		Loggers.VCS.warn("Unable to write command output to " + file + ": " + ex.getMessage());
+		spillFailed = true;
+		if (spill != null)
+		{
+			try
+			{
+				spill.close();
+			}
+			catch (IOException ignored)
+			{
+				/* deleted anyway */
+			}
+			spill = null;
+		}
+		if (file != null)
+		{
+			file.delete();
+			file = null;
+		}
+	}
+}
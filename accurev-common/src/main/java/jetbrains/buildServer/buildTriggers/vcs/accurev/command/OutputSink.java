@@ -0,0 +1,39 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Where {@link AcProcessExecutor} sends the output (stdout or stderr) of a
+ * command. The sink reads the stream itself, so the output goes straight to
+ * its destination without being buffered on the way.
+ *
+ * @author Francois Retief
+ */
+public interface OutputSink
+{
+	/**
+	 * Reads the output of the command.
+	 *
+	 * @return true if the output was read to the end; false if the sink stopped
+	 *         early, in which case the process is stopped
+	 */
+	boolean consume(@NotNull InputStream output) throws IOException;
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import jetbrains.buildServer.log.Loggers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The usual {@link OutputSink}s: discard, text, file, stream, log and XML
+ * (SAX handler or DOM document).
+ *
+ * @author Francois Retief
+ */
+public class OutputSinks
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private OutputSinks()
+	{
+	}
+
+	/**
+	 * Reads and drops the output.
+	 */
+	@NotNull
+	public static OutputSink discard()
+	{
+		return new OutputSink() {
+			public boolean consume(@NotNull InputStream output) throws IOException
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while (output.read(buffer) >= 0)
+				{
+					/* drop */
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Appends the output, decoded with the platform charset, to the buffer.
+	 */
+	@NotNull
+	public static OutputSink toText(@NotNull final StringBuffer target)
+	{
+		return new OutputSink() {
+			public boolean consume(@NotNull InputStream output) throws IOException
+			{
+				Reader reader = new InputStreamReader(output);
+				char[] buffer = new char[BUFFER_SIZE];
+				int count;
+				while ((count = reader.read(buffer)) >= 0)
+				{
+					target.append(buffer, 0, count);
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Writes the output to a file, as is.
+	 */
+	@NotNull
+	public static OutputSink toFile(@NotNull final File file)
+	{
+		return new OutputSink() {
+			public boolean consume(@NotNull InputStream output) throws IOException
+			{
+				FileChannel channel = new FileOutputStream(file).getChannel();
+				try
+				{
+					// Let the channel move the bytes, without an extra buffer of ours
+					ReadableByteChannel source = Channels.newChannel(output);
+					long position = 0;
+					long count;
+					// The source blocks until there is data, so nothing moved means the end
+					while ((count = channel.transferFrom(source, position, BUFFER_SIZE * 8)) > 0)
+					{
+						position += count;
+					}
+				}
+				finally
+				{
+					channel.close();
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Writes the output to a stream, as is. The stream is not closed.
+	 */
+	@NotNull
+	public static OutputSink toStream(@NotNull final OutputStream target)
+	{
+		return new OutputSink() {
+			public boolean consume(@NotNull InputStream output) throws IOException
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+				while ((count = output.read(buffer)) >= 0)
+				{
+					target.write(buffer, 0, count);
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Logs the output line by line at debug level.
+	 */
+	@NotNull
+	public static OutputSink toLog(@NotNull final String prefix)
+	{
+		return new OutputSink() {
+			public boolean consume(@NotNull InputStream output) throws IOException
+			{
+				BufferedReader reader = new BufferedReader(new InputStreamReader(output));
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					if (Loggers.VCS.isDebugEnabled())
+						Loggers.VCS.debug(prefix + line);
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Parses the output into a DOM document while the command runs.
+	 */
+	@NotNull
+	public static DocumentSink toDocument()
+	{
+		return new DocumentSink();
+	}
+
+	/**
+	 * Parses the output as XML while the command runs.
+	 *
+	 * @param abortOnError whether to stop the command when the handler fails; if
+	 *                     not, the rest of the output is dropped
+	 * @param keep         where to keep a copy of the output, or null to not keep it
+	 */
+	@NotNull
+	public static ParserSink toParser(@NotNull DefaultHandler handler, boolean abortOnError, @Nullable OutputCapture keep)
+	{
+		return new ParserSink(handler, abortOnError, keep);
+	}
+
+	/**
+	 * Keeps a parser from closing the output when it is done with it; what it
+	 * did not read is read after it, so that the command can finish.
+	 */
+	private static InputStream keepOpen(InputStream in)
+	{
+		return new FilterInputStream(in) {
+			public void close()
+			{
+				/* the executor closes the output of the process */
+			}
+		};
+	}
+
+	public static class ParserSink implements OutputSink
+	{
+		private final DefaultHandler handler;
+		private final boolean abortOnError;
+		private final OutputCapture keep;
+		private Exception error;
+
+		private ParserSink(DefaultHandler handler, boolean abortOnError, OutputCapture keep)
+		{
+			this.handler = handler;
+			this.abortOnError = abortOnError;
+			this.keep = keep;
+		}
+
+		/**
+		 * Returns the exception the parse stopped with, if any.
+		 */
+		@Nullable
+		public Exception getError()
+		{
+			return error;
+		}
+
+		public boolean consume(@NotNull InputStream output) throws IOException
+		{
+			// The copy is taken below the buffer, so that the peek at the first
+			// byte (mark, read and reset) does not copy it twice
+			InputStream in = output;
+			if (keep != null)
+			{
+				in = new FilterInputStream(in) {
+					public int read() throws IOException
+					{
+						int b = super.read();
+						if (b >= 0)
+							keep.write(new byte[] { (byte)b }, 0, 1);
+						return b;
+					}
+
+					public int read(byte[] b, int off, int len) throws IOException
+					{
+						int count = super.read(b, off, len);
+						if (count > 0)
+							keep.write(b, off, count);
+						return count;
+					}
+				};
+			}
+			in = new BufferedInputStream(in, BUFFER_SIZE);
+
+			try
+			{
+				// No output at all (the command failed) is not an XML error
+				in.mark(1);
+				if (in.read() < 0)
+					return true;
+				in.reset();
+
+				try
+				{
+					SAXParserFactory.newInstance().newSAXParser().parse(new InputSource(new XmlEscapingInputStream(keepOpen(in))), handler);
+				}
+				catch (SAXException ex)
+				{
+					error = ex;
+				}
+				catch (ParserConfigurationException ex)
+				{
+					error = ex;
+				}
+
+				if (error != null)
+				{
+					if (abortOnError)
+						return false;
+					byte[] buffer = new byte[BUFFER_SIZE];
+					while (in.read(buffer) >= 0)
+					{
+						/* drop the rest */
+					}
+				}
+				return true;
+			}
+			finally
+			{
+				if (keep != null)
+					keep.finish();
+			}
+		}
+	}
+
+	public static class DocumentSink implements OutputSink
+	{
+		private Document document;
+		private Exception error;
+
+		private DocumentSink()
+		{
+		}
+
+		/**
+		 * Returns the parsed output, or null if the command had no output.
+		 */
+		@Nullable
+		public Document getDocument() throws ParserConfigurationException, SAXException
+		{
+			if (error instanceof ParserConfigurationException)
+				throw (ParserConfigurationException)error;
+			if (error != null)
+				throw (SAXException)error;
+			return document;
+		}
+
+		public boolean consume(@NotNull InputStream output) throws IOException
+		{
+			document = null;
+			error = null;
+
+			InputStream in = new BufferedInputStream(output, BUFFER_SIZE);
+			in.mark(1);
+			if (in.read() < 0)
+				return true;
+			in.reset();
+
+			try
+			{
+				document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new XmlEscapingInputStream(keepOpen(in)));
+			}
+			catch (SAXException ex)
+			{
+				error = ex;
+			}
+			catch (ParserConfigurationException ex)
+			{
+				error = ex;
+			}
+
+			// Let the command finish, the error is reported by getDocument()
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (in.read(buffer) >= 0)
+			{
+				/* drop the rest */
+			}
+			return true;
+		}
+	}
+}
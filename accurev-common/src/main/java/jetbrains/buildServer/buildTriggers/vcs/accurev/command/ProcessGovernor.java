@@ -0,0 +1,263 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the number of AccuRev processes running against one AccuRev server.
+ *
+ * Commands wait for a slot in the queue of their VCS root. Slots are handed
+ * out to the queues in turn, so a root with a long backlog of commands cannot
+ * keep the others waiting; interactive commands (file content, test
+ * connection) are served before background ones (checking for changes).
+ *
+ * A request can take several slots at once, for commands that only make
+ * progress when they run together. Such a request is never larger than the
+ * limit; if it asks for more, it gets all the slots and runs alone.
+ *
+ * @author Francois Retief
+ */
+public class ProcessGovernor
+{
+	public enum Priority
+	{
+		INTERACTIVE,
+		BACKGROUND
+	}
+
+	private static final int DEFAULT_MAX_PROCESSES = 8;
+	private static final int DEFAULT_WAIT_TIMEOUT = 600;
+
+	private static final Map<String, ProcessGovernor> governors = new HashMap<String, ProcessGovernor>();
+
+	/**
+	 * Returns the governor for an AccuRev server, i.e. "server:port".
+	 */
+	@NotNull
+	public static ProcessGovernor getInstance(@NotNull String server)
+	{
+		synchronized (governors)
+		{
+			ProcessGovernor governor = governors.get(server);
+			if (governor == null)
+			{
+				int max = TeamCityProperties.getInteger("teamcity.accurev.maxProcessesPerServer", DEFAULT_MAX_PROCESSES);
+				int timeout = TeamCityProperties.getInteger("teamcity.accurev.processWaitTimeout", DEFAULT_WAIT_TIMEOUT);
+				governor = new ProcessGovernor(server, Math.max(1, max), Math.max(0, timeout) * 1000L);
+				governors.put(server, governor);
+			}
+			return governor;
+		}
+	}
+
+	/**
+	 * Slots held by a command; must be released once its process has ended.
+	 */
+	public class Permit
+	{
+		private final int count;
+		private boolean released;
+
+		private Permit(int count)
+		{
+			this.count = count;
+		}
+
+		public void release()
+		{
+			ProcessGovernor.this.release(this);
+		}
+	}
+
+	private static class Ticket
+	{
+		final int count;
+		Permit permit;
+
+		Ticket(int count)
+		{
+			this.count = count;
+		}
+	}
+
+	private final String server;
+	private final int maxProcesses;
+	private final long waitTimeout;
+	private int running;
+	private final Map<Priority, LinkedHashMap<String, LinkedList<Ticket>>> waiting =
+		new EnumMap<Priority, LinkedHashMap<String, LinkedList<Ticket>>>(Priority.class);
+
+	ProcessGovernor(String server, int maxProcesses, long waitTimeout)
+	{
+		this.server = server;
+		this.maxProcesses = maxProcesses;
+		this.waitTimeout = waitTimeout;
+		for (Priority priority : Priority.values())
+		{
+			waiting.put(priority, new LinkedHashMap<String, LinkedList<Ticket>>());
+		}
+	}
+
+	public int getMaxProcesses()
+	{
+		return maxProcesses;
+	}
+
+	/**
+	 * Waits for the given number of slots, for at most the configured wait
+	 * timeout (teamcity.accurev.processWaitTimeout, in seconds; 0 waits forever).
+	 *
+	 * @param queue the queue to wait in, one per VCS root
+	 */
+	@NotNull
+	public synchronized Permit acquire(@NotNull String queue, @NotNull Priority priority, int count) throws VcsException
+	{
+		Ticket ticket = new Ticket(Math.max(1, Math.min(count, maxProcesses)));
+		LinkedList<Ticket> tickets = waiting.get(priority).get(queue);
+		if (tickets == null)
+		{
+			tickets = new LinkedList<Ticket>();
+			waiting.get(priority).put(queue, tickets);
+		}
+		tickets.add(ticket);
+		dispatch();
+
+		if (ticket.permit == null)
+		{
+			Loggers.VCS.debug("Waiting for an AccuRev process slot on " + server + " (" + running + " running) for " + queue);
+		}
+		long deadline = System.currentTimeMillis() + waitTimeout;
+		while (ticket.permit == null)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (waitTimeout > 0 && remaining <= 0)
+			{
+				cancel(ticket, tickets, priority, queue);
+				throw new VcsException("Timed out after " + (waitTimeout / 1000) + " s waiting to run an AccuRev command on "
+					+ server + " (" + running + " running)");
+			}
+			try
+			{
+				wait((waitTimeout > 0) ? remaining : 0);
+			}
+			catch (InterruptedException ex)
+			{
+				if (ticket.permit != null)
+				{
+					release(ticket.permit);
+				}
+				else
+				{
+					cancel(ticket, tickets, priority, queue);
+				}
+				Thread.currentThread().interrupt();
+				throw new VcsException("Interrupted while waiting to run an AccuRev command on " + server, ex);
+			}
+		}
+		return ticket.permit;
+	}
+
+	private void cancel(Ticket ticket, LinkedList<Ticket> tickets, Priority priority, String queue)
+	{
+		tickets.remove(ticket);
+		if (tickets.isEmpty() && waiting.get(priority).get(queue) == tickets)
+			waiting.get(priority).remove(queue);
+		dispatch(); // the ticket may have held up the others
+	}
+
+	/**
+	 * Takes the given number of slots if they are free and nobody is waiting for
+	 * them, without waiting.
+	 *
+	 * @return the permit, or null if the slots are not available
+	 */
+	@Nullable
+	public synchronized Permit tryAcquire(int count)
+	{
+		count = Math.max(1, Math.min(count, maxProcesses));
+		for (LinkedHashMap<String, LinkedList<Ticket>> queues : waiting.values())
+		{
+			if (!queues.isEmpty())
+				return null;
+		}
+		if (running + count > maxProcesses)
+			return null;
+
+		running += count;
+		return new Permit(count);
+	}
+
+	private synchronized void release(Permit permit)
+	{
+		if (permit.released)
+			return;
+		permit.released = true;
+		running -= permit.count;
+		dispatch();
+	}
+
+	/**
+	 * Hands out free slots to the waiting tickets: interactive ones first, and
+	 * within a priority one ticket per queue in turn. A ticket that does not fit
+	 * holds up the ones behind it, so large requests are not starved.
+	 */
+	private void dispatch()
+	{
+		boolean granted = false;
+		for (Priority priority : Priority.values())
+		{
+			LinkedHashMap<String, LinkedList<Ticket>> queues = waiting.get(priority);
+			while (!queues.isEmpty())
+			{
+				Iterator<Map.Entry<String, LinkedList<Ticket>>> it = queues.entrySet().iterator();
+				Map.Entry<String, LinkedList<Ticket>> first = it.next();
+				LinkedList<Ticket> tickets = first.getValue();
+				Ticket ticket = tickets.getFirst();
+				if (running + ticket.count > maxProcesses)
+				{
+					if (granted)
+						notifyAll();
+					return;
+				}
+
+				// Serve the ticket and move its queue to the back of the line
+				tickets.removeFirst();
+				it.remove();
+				if (!tickets.isEmpty())
+					queues.put(first.getKey(), tickets);
+
+				running += ticket.count;
+				ticket.permit = new Permit(ticket.count);
+				granted = true;
+			}
+		}
+		if (granted)
+			notifyAll();
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Stops running commands against an AccuRev server that can't be reached.
+ *
+ * After a few commands in a row failed to connect, the breaker opens and
+ * commands for that server fail right away instead of each waiting for the
+ * connect timeout. Once the back-off delay has passed, one caller checks the
+ * server with a cheap 'accurev info'; if the server answers the breaker closes,
+ * otherwise the delay is doubled (up to a maximum).
+ *
+ * @author Francois Retief
+ */
+public class ServerCircuitBreaker
+{
+	private static final Map<String, ServerCircuitBreaker> breakers = new HashMap<String, ServerCircuitBreaker>();
+
+	/**
+	 * Returns the breaker of an AccuRev server, i.e. "server:port".
+	 */
+	@NotNull
+	public static ServerCircuitBreaker getInstance(@NotNull String server)
+	{
+		synchronized (breakers)
+		{
+			ServerCircuitBreaker breaker = breakers.get(server);
+			if (breaker == null)
+			{
+				breaker = new ServerCircuitBreaker(server,
+					TeamCityProperties.getInteger("teamcity.accurev.breaker.failures", 3),
+					TeamCityProperties.getInteger("teamcity.accurev.breaker.initialDelay", 10) * 1000L,
+					TeamCityProperties.getInteger("teamcity.accurev.breaker.maxDelay", 300) * 1000L);
+				breakers.put(server, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	private final String server;
+	private final int threshold;
+	private final long initialDelay;
+	private final long maxDelay;
+
+	private int failures;
+	private boolean open;
+	private boolean probing;
+	private long delay;
+	private long retryAt;
+
+	ServerCircuitBreaker(String server, int threshold, long initialDelay, long maxDelay)
+	{
+		this.server = server;
+		this.threshold = Math.max(1, threshold);
+		this.initialDelay = Math.max(1000, initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, maxDelay);
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * Called before a command is run. Throws while the breaker is open; when the
+	 * back-off delay has passed, the first caller probes the server first.
+	 */
+	public void beforeCommand(@NotNull AcCommandContext context) throws VcsException
+	{
+		synchronized (this)
+		{
+			if (!open)
+				return;
+			if (probing || currentTimeMillis() < retryAt)
+				throw unreachable();
+			probing = true;
+		}
+
+		boolean reachable = false;
+		try
+		{
+			reachable = ping(context);
+		}
+		catch (VcsException ex)
+		{
+			Loggers.VCS.debug("Probing AccuRev server " + server + " failed: " + ex.getMessage());
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				probing = false;
+				if (reachable)
+					close();
+				else
+					reopen();
+			}
+		}
+		if (!reachable)
+			throw unreachable();
+	}
+
+	/**
+	 * Called once a command has run.
+	 *
+	 * @param unreachable whether the command failed to connect to the server
+	 */
+	public synchronized void afterCommand(boolean unreachable)
+	{
+		if (!unreachable)
+		{
+			if (open)
+				close();
+			failures = 0;
+			return;
+		}
+
+		++failures;
+		if (!open && failures >= threshold)
+		{
+			open = true;
+			delay = initialDelay;
+			retryAt = currentTimeMillis() + delay;
+			Loggers.VCS.warn("AccuRev server " + server + " is unreachable after " + failures
+				+ " attempts; not running commands for " + (delay / 1000) + " seconds");
+		}
+	}
+
+	/**
+	 * Checks whether the server answers.
+	 */
+	boolean ping(@NotNull AcCommandContext context) throws VcsException
+	{
+		return new AcSecurityProcess(context).ping();
+	}
+
+	/**
+	 * The clock the back-off delay is measured with.
+	 */
+	long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
+	private void close()
+	{
+		Loggers.VCS.info("AccuRev server " + server + " is reachable again");
+		open = false;
+		failures = 0;
+	}
+
+	private void reopen()
+	{
+		delay = Math.min(delay * 2, maxDelay);
+		retryAt = currentTimeMillis() + delay;
+		Loggers.VCS.warn("AccuRev server " + server + " is still unreachable; trying again in " + (delay / 1000) + " seconds");
+	}
+
+	private synchronized VcsException unreachable()
+	{
+		long wait = Math.max(0, retryAt - currentTimeMillis()) / 1000;
+		return new VcsException("AccuRev server " + server + " is unreachable (" + failures
+			+ " failed connections); the next attempt is in " + wait + " seconds");
+	}
+}
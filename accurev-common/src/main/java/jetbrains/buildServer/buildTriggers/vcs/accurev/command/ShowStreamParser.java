@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import com.accurev.common.parsers.AccuRevHandler;
+
+/**
+ * Reads the answer of 'accurev show -fx -s stream streams': the first stream
+ * and how many streams there were.
+ *
+ * @author Francois Retief
+ */
+public class ShowStreamParser extends AccuRevHandler
+{
+	private int depth;
+	private String rootName;
+	private int count;
+	private StreamInfo stream;
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+	{
+		super.startElement(uri, localName, qName, attributes);
+		++depth;
+		if (depth == 1)
+		{
+			rootName = qName;
+		}
+		else if (depth == 2 && "stream".equals(qName))
+		{
+			if (count++ == 0)
+			{
+				String time = attributes.getValue("time");
+				stream = new StreamInfo(attributes.getValue("name"), attributes.getValue("basis"),
+					attributes.getValue("type"), (time != null && time.length() > 0) ? time : null);
+			}
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException
+	{
+		super.endElement(uri, localName, qName);
+		--depth;
+	}
+
+	public String getRootName()
+	{
+		return rootName;
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	public StreamInfo getStream()
+	{
+		return stream;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The attributes of a stream that are used from 'accurev show streams'.
+ *
+ * @author Francois Retief
+ */
+public final class StreamInfo
+{
+	private final String name;
+	private final String basis;
+	private final String type;
+	private final String time;
+
+	public StreamInfo(@NotNull String name, @Nullable String basis, @Nullable String type, @Nullable String time)
+	{
+		this.name = name;
+		this.basis = basis;
+		this.type = type;
+		this.time = time;
+	}
+
+	@NotNull
+	public String getName()
+	{
+		return name;
+	}
+
+	@Nullable
+	public String getBasis()
+	{
+		return basis;
+	}
+
+	@Nullable
+	public String getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Returns the time-lock of the stream, or null if it is not time-locked.
+	 */
+	@Nullable
+	public String getTime()
+	{
+		return time;
+	}
+
+	public String toString()
+	{
+		return name;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.accurev.common.data.StreamData;
+
+/**
+ * In-memory copy of the stream hierarchy of a depot, as returned by a single
+ * 'accurev show -fx -p depot streams'. It answers the basis, type and time-lock
+ * questions that used to cost an 'accurev show' each.
+ *
+ * The topology is reloaded when the depot transaction watermark moves (creating
+ * or changing a stream is a transaction), or when a stream is asked for that
+ * it does not know about yet.
+ *
+ * @author Francois Retief
+ */
+public class StreamTopology
+{
+	private static final Map<String, StreamTopology> instances = new HashMap<String, StreamTopology>();
+
+	/** Don't reload on a miss if the topology was loaded less than this long ago. */
+	private static final long MIN_RELOAD_INTERVAL = 5000;
+
+	/**
+	 * Returns the topology of a depot. The namespace identifies the depot on
+	 * a specific server, i.e. "server:port/depot".
+	 */
+	@NotNull
+	public static StreamTopology getInstance(@NotNull String namespace)
+	{
+		synchronized (instances)
+		{
+			StreamTopology topology = instances.get(namespace);
+			if (topology == null)
+			{
+				topology = new StreamTopology();
+				instances.put(namespace, topology);
+			}
+			return topology;
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the stream graph. Streams are numbered by their index
+	 * in the arrays; basis holds the index of the parent stream (-1 for the root).
+	 */
+	private static class Graph
+	{
+		final String watermark;
+		final long loadTime;
+
+		final Map<String, Integer> indexByName;
+		final Map<String, Integer> indexByNumber;
+		final String[] names;
+		final String[] numbers;
+		final int[] basis;
+		final byte[] types;
+		final String[] typeNames;
+		final String[] timelocks;
+
+		Graph(List<StreamData> streams, String watermark, long loadTime)
+		{
+			int count = streams.size();
+			this.watermark = watermark;
+			this.loadTime = loadTime;
+
+			indexByName = new HashMap<String, Integer>(count * 2);
+			indexByNumber = new HashMap<String, Integer>(count * 2);
+			names = new String[count];
+			numbers = new String[count];
+			basis = new int[count];
+			types = new byte[count];
+			timelocks = new String[count];
+
+			List<String> typeList = new ArrayList<String>();
+			for (int i = 0; i < count; ++i)
+			{
+				StreamData stream = streams.get(i);
+				names[i] = stream.getName();
+				numbers[i] = stream.getNumber();
+				indexByName.put(names[i], i);
+				if (numbers[i] != null)
+					indexByNumber.put(numbers[i], i);
+
+				String type = (stream.getType() != null) ? stream.getType() : "";
+				int typeIndex = typeList.indexOf(type);
+				if (typeIndex < 0)
+				{
+					typeIndex = typeList.size();
+					typeList.add(type);
+				}
+				types[i] = (byte)typeIndex;
+
+				String time = stream.getBasisStreamTime();
+				timelocks[i] = (time != null && time.length() > 0) ? time : null;
+			}
+			typeNames = typeList.toArray(new String[typeList.size()]);
+
+			for (int i = 0; i < count; ++i)
+			{
+				String basisName = streams.get(i).getBasisName();
+				Integer index = (basisName != null) ? indexByName.get(basisName) : null;
+				basis[i] = (index != null) ? index : -1;
+			}
+		}
+	}
+
+	private volatile Graph graph;
+
+	StreamTopology()
+	{
+	}
+
+	/**
+	 * The clock the reload interval is measured with.
+	 */
+	long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Whether the topology has to be (re)loaded before it can be used.
+	 *
+	 * @param watermark the current transaction watermark of the depot, or null if
+	 *                  not known, in which case any loaded topology is good enough
+	 */
+	public boolean needsReload(@Nullable String watermark)
+	{
+		Graph g = graph;
+		if (g == null)
+			return true;
+		return watermark != null && !watermark.equals(g.watermark);
+	}
+
+	/**
+	 * Whether a lookup miss warrants reloading the topology, as the stream may
+	 * have been created since it was loaded.
+	 */
+	public boolean shouldReloadOnMiss()
+	{
+		Graph g = graph;
+		return g == null || currentTimeMillis() - g.loadTime > MIN_RELOAD_INTERVAL;
+	}
+
+	public void update(@NotNull List<StreamData> streams, @Nullable String watermark)
+	{
+		graph = new Graph(streams, watermark, currentTimeMillis());
+	}
+
+	public void invalidate()
+	{
+		graph = null;
+	}
+
+	public boolean exists(@NotNull String stream)
+	{
+		Graph g = graph;
+		return g != null && g.indexByName.containsKey(stream);
+	}
+
+	/**
+	 * Returns the name of the basis (parent) stream, or null for the root stream
+	 * of the depot or an unknown stream.
+	 */
+	@Nullable
+	public String getBasis(@NotNull String stream)
+	{
+		Graph g = graph;
+		Integer index = (g != null) ? g.indexByName.get(stream) : null;
+		if (index == null || g.basis[index] < 0)
+			return null;
+		return g.names[g.basis[index]];
+	}
+
+	@Nullable
+	public String getType(@NotNull String stream)
+	{
+		Graph g = graph;
+		Integer index = (g != null) ? g.indexByName.get(stream) : null;
+		if (index == null)
+			return null;
+		return g.typeNames[g.types[index]];
+	}
+
+	public boolean isPassThrough(@NotNull String stream)
+	{
+		return StreamData.PASS_THROUGH_TYPE.equals(getType(stream));
+	}
+
+	/**
+	 * Returns the time-lock of the stream, or null if it is not time-locked.
+	 */
+	@Nullable
+	public String getTimelock(@NotNull String stream)
+	{
+		Graph g = graph;
+		Integer index = (g != null) ? g.indexByName.get(stream) : null;
+		if (index == null)
+			return null;
+		return g.timelocks[index];
+	}
+
+	/**
+	 * Returns the stream followed by all its ancestors, up to the root stream.
+	 */
+	@NotNull
+	public List<String> getAncestry(@NotNull String stream)
+	{
+		List<String> result = new ArrayList<String>();
+		Graph g = graph;
+		Integer index = (g != null) ? g.indexByName.get(stream) : null;
+		if (index == null)
+			return result;
+
+		int i = index;
+		while (i >= 0 && result.size() < g.names.length) // guard against cycles
+		{
+			result.add(g.names[i]);
+			i = g.basis[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Translates a stream number into its name, or null if the number is unknown.
+	 */
+	@Nullable
+	public String getStreamName(@NotNull String number)
+	{
+		Graph g = graph;
+		Integer index = (g != null) ? g.indexByNumber.get(number) : null;
+		return (index != null) ? g.names[index] : null;
+	}
+}
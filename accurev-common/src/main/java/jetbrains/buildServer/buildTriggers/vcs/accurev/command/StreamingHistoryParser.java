@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import org.xml.sax.SAXException;
+
+import com.accurev.common.data.TransactionData;
+import com.accurev.common.parsers.HistoryParser;
+
+import jetbrains.buildServer.vcs.VcsException;
+
+/**
+ * History parser that hands each transaction to a {@link HistoryConsumer} as
+ * soon as it is complete, instead of collecting them all. Only the transaction
+ * being parsed is held in memory.
+ *
+ * @author Francois Retief
+ */
+public class StreamingHistoryParser extends HistoryParser
+{
+	private final HistoryConsumer consumer;
+	private VcsException consumerError;
+	private int count;
+	private boolean complete;
+
+	public StreamingHistoryParser(HistoryConsumer consumer)
+	{
+		this.consumer = consumer;
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException
+	{
+		super.endElement(uri, localName, qName);
+		if (!"transaction".equals(qName) || historyCollection.isEmpty())
+			return;
+
+		TransactionData tx = (TransactionData)historyCollection.remove(historyCollection.size() - 1);
+		++count;
+		try
+		{
+			consumer.transaction(tx);
+		}
+		catch (VcsException ex)
+		{
+			// Abort the parse; the command runner stops the process
+			consumerError = ex;
+			throw new SAXException(ex.getMessage());
+		}
+	}
+
+	public void endDocument() throws SAXException
+	{
+		super.endDocument();
+		complete = true;
+	}
+
+	/**
+	 * Whether the whole output was parsed. A parse error leaves this false.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Returns the exception the consumer stopped the parse with, if any.
+	 */
+	public VcsException getConsumerError()
+	{
+		return consumerError;
+	}
+
+	/**
+	 * Returns the number of transactions handed to the consumer.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+}
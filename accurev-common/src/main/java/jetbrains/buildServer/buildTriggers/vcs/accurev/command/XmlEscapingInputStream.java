@@ -0,0 +1,192 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Escapes the '&' characters that AccuRev leaves unescaped in its XML output
+ * (in comments and element names, for one), while the output is read.
+ *
+ * An '&' that starts a valid reference (one of the predefined entities or a
+ * character reference) is left alone; any other becomes "&amp;". This works on
+ * the bytes, so the parser still decodes the text with the encoding in the XML
+ * declaration: '&' and the characters of a reference are ASCII, and bytes
+ * below 0x80 are never part of a multi-byte character in UTF-8.
+ *
+ * @author Francois Retief
+ */
+public class XmlEscapingInputStream extends FilterInputStream
+{
+	/** Longest valid reference after the '&', i.e. "#x10FFFF;". */
+	private static final int MAX_REFERENCE = 9;
+	private static final byte[] AMP = { 'a', 'm', 'p', ';' };
+	private static final String[] ENTITIES = { "amp;", "lt;", "gt;", "quot;", "apos;" };
+
+	private final PushbackInputStream source;
+	private final byte[] pending = new byte[AMP.length + MAX_REFERENCE];
+	private int pendingStart;
+	private int pendingEnd;
+
+	public XmlEscapingInputStream(@NotNull InputStream in)
+	{
+		this(new PushbackInputStream(in, 1));
+	}
+
+	private XmlEscapingInputStream(PushbackInputStream in)
+	{
+		super(in);
+		this.source = in;
+	}
+
+	public int read() throws IOException
+	{
+		if (pendingStart < pendingEnd)
+			return pending[pendingStart++] & 0xff;
+
+		int b = source.read();
+		if (b == '&')
+			readReference();
+		return b;
+	}
+
+	public int read(@NotNull byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		int count = 0;
+		while (count < len)
+		{
+			// Don't block for more once there is something to return
+			if (count > 0 && pendingStart == pendingEnd && source.available() <= 0)
+				break;
+
+			int c = read();
+			if (c < 0)
+				return (count > 0) ? count : -1;
+			b[off + count++] = (byte)c;
+		}
+		return count;
+	}
+
+	public long skip(long n) throws IOException
+	{
+		long skipped = 0;
+		while (skipped < n && read() >= 0)
+		{
+			++skipped;
+		}
+		return skipped;
+	}
+
+	public int available() throws IOException
+	{
+		return (pendingEnd - pendingStart) + source.available();
+	}
+
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	public synchronized void mark(int readlimit)
+	{
+	}
+
+	public synchronized void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Reads what follows an '&' into the pending bytes, with "amp;" in front if
+	 * it is not a valid reference.
+	 */
+	private void readReference() throws IOException
+	{
+		byte[] name = new byte[MAX_REFERENCE];
+		int length = 0;
+		while (length < MAX_REFERENCE)
+		{
+			int c = source.read();
+			if (c < 0)
+				break;
+			if (!isReferenceChar(c))
+			{
+				// Not ours; it may well be the next '&'
+				source.unread(c);
+				break;
+			}
+			name[length++] = (byte)c;
+			if (c == ';')
+				break;
+		}
+
+		pendingStart = 0;
+		pendingEnd = 0;
+		if (!isValidReference(name, length))
+		{
+			System.arraycopy(AMP, 0, pending, 0, AMP.length);
+			pendingEnd = AMP.length;
+		}
+		System.arraycopy(name, 0, pending, pendingEnd, length);
+		pendingEnd += length;
+	}
+
+	private static boolean isReferenceChar(int c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '#' || c == ';';
+	}
+
+	private static boolean isValidReference(byte[] name, int length)
+	{
+		if (length < 2 || name[length - 1] != ';')
+			return false;
+
+		StringBuilder chars = new StringBuilder(length);
+		for (int i = 0; i < length; ++i)
+		{
+			chars.append((char)name[i]); // ASCII only, see isReferenceChar
+		}
+		String text = chars.toString();
+		if (text.charAt(0) == '#')
+		{
+			boolean hex = text.length() > 1 && (text.charAt(1) == 'x');
+			int first = hex ? 2 : 1;
+			int last = text.length() - 1;
+			if (first >= last)
+				return false;
+			for (int i = first; i < last; ++i)
+			{
+				if (Character.digit(text.charAt(i), hex ? 16 : 10) < 0)
+					return false;
+			}
+			return true;
+		}
+		for (String entity : ENTITIES)
+		{
+			if (entity.equals(text))
+				return true;
+		}
+		return false;
+	}
+}
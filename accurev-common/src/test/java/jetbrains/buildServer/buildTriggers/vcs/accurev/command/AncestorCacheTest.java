@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.io.IOException;
+
+import jetbrains.buildServer.util.FileUtil;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the ancestor cache: what survives a restart, when its journal is
+ * compacted and which entries are dropped. The journal itself is covered by
+ * {@link JournalTest}.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class AncestorCacheTest
+{
+	private File cacheDir;
+	private File cacheFile;
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		cacheDir = FileUtil.createTempDirectory("ancestors", "");
+		cacheFile = new File(cacheDir, "ancestors.bin");
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		FileUtil.delete(cacheDir);
+	}
+
+	public void testEntriesSurviveRestart()
+	{
+		AncestorCache cache = new AncestorCache(cacheDir, 100);
+		cache.put("a", "stream/1");
+		cache.put("b", "stream/2");
+		cache.put("a", "stream/3");
+		cache.close();
+
+		cache = new AncestorCache(cacheDir, 100);
+		assertEquals(cache.get("a"), "stream/3");
+		assertEquals(cache.get("b"), "stream/2");
+		assertNull(cache.get("c"));
+		cache.close();
+	}
+
+	public void testStaleRecordsAreCompacted()
+	{
+		AncestorCache cache = new AncestorCache(cacheDir, 2);
+		cache.put("a", "stream/0");
+		cache.flush();
+		long oneRecord = cacheFile.length();
+		for (int i = 1; i <= 100; ++i)
+		{
+			cache.put("a", "stream/" + (i % 10));
+		}
+		cache.flush();
+		assertTrue(cacheFile.length() <= oneRecord + 4 * (oneRecord - 8), "journal was not compacted: " + cacheFile.length());
+		cache.close();
+
+		cache = new AncestorCache(cacheDir, 2);
+		assertEquals(cache.get("a"), "stream/0");
+		cache.close();
+	}
+
+	public void testLeastRecentlyUsedIsDropped()
+	{
+		AncestorCache cache = new AncestorCache(cacheDir, 2);
+		cache.put("a", "stream/1");
+		cache.put("b", "stream/2");
+		cache.get("a");
+		cache.put("c", "stream/3");
+		assertNull(cache.get("b"));
+		cache.close();
+
+		// Only writes are journalled, so a restart keeps the last ones written
+		cache = new AncestorCache(cacheDir, 2);
+		assertNull(cache.get("a"));
+		assertEquals(cache.get("b"), "stream/2");
+		assertEquals(cache.get("c"), "stream/3");
+		cache.close();
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Settings;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.accurev.common.data.VersionData;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests reading the predecessors of a transaction from 'accurev diff -a -fx -i',
+ * the way the command output is parsed, and what of it is cached.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class DiffPredecessorParserTest
+{
+	private File cacheDir;
+
+	// 'accurev diff -a -fx -i -v dev -V dev -t 42-41'
+	private static final String DIFF =
+		"<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+		"<acResponse>\n" +
+		"  <Element>\n" +
+		"    <Change What=\"version\">\n" +
+		"      <Stream1 Name=\"/./src/Main.java\" eid=\"12\" Version=\"dev/4\" namedVersion=\"int/3\" isDir=\"false\" elemType=\"text\"/>\n" +
+		"      <Stream2 Name=\"/./src/Main.java\" eid=\"12\" Version=\"dev/5\" namedVersion=\"int/4\" isDir=\"false\" elemType=\"text\"/>\n" +
+		"    </Change>\n" +
+		"  </Element>\n" +
+		"  <Element>\n" +
+		"    <Change What=\"created\">\n" +
+		"      <Stream2 Name=\"/./src/R&D.txt\" eid=\"31\" Version=\"dev/1\" namedVersion=\"int/1\" isDir=\"false\" elemType=\"text\"/>\n" +
+		"    </Change>\n" +
+		"  </Element>\n" +
+		"  <Element>\n" +
+		"    <Change What=\"moved\">\n" +
+		"      <Stream1 Name=\"/./old/Util.java\" eid=\"17\" Version=\"dev/2\" namedVersion=\"int/2\" isDir=\"false\" elemType=\"text\"/>\n" +
+		"      <Stream2 Name=\"/./new/Util.java\" eid=\"17\" Version=\"dev/2\" namedVersion=\"int/2\" isDir=\"false\" elemType=\"text\"/>\n" +
+		"    </Change>\n" +
+		"  </Element>\n" +
+		"  <Element>\n" +
+		"    <Change What=\"eid\">\n" +
+		"      <Stream1 Name=\"/./lib\" eid=\"8\" Version=\"dev/1\" isDir=\"true\" elemType=\"dir\"/>\n" +
+		"      <Stream2 Name=\"/./lib\" eid=\"9\" Version=\"dev/1\" isDir=\"true\" elemType=\"dir\"/>\n" +
+		"    </Change>\n" +
+		"  </Element>\n" +
+		"  <Element eid=\"44\">\n" +
+		"    <Change What=\"version\">\n" +
+		"      <Stream1 Name=\"/./doc/readme.txt\" Version=\"dev/7\"/>\n" +
+		"      <Stream2 Name=\"/./doc/readme.txt\" Version=\"dev/8\"/>\n" +
+		"    </Change>\n" +
+		"  </Element>\n" +
+		"</acResponse>\n";
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		cacheDir = FileUtil.createTempDirectory("predecessors", "");
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		FileUtil.delete(cacheDir);
+	}
+
+	public void testModifiedElement() throws IOException
+	{
+		DiffPredecessorParser parser = parse(DIFF);
+		assertTrue(parser.isComplete());
+		assertTrue(parser.isChanged("12"));
+		assertEquals(parser.getPredecessor("12"), "dev/4");
+	}
+
+	public void testAddedElementHasNoPredecessor() throws IOException
+	{
+		DiffPredecessorParser parser = parse(DIFF);
+		assertTrue(parser.isChanged("31"));
+		assertNull(parser.getPredecessor("31"));
+	}
+
+	public void testMovedElement() throws IOException
+	{
+		DiffPredecessorParser parser = parse(DIFF);
+		assertTrue(parser.isChanged("17"));
+		assertEquals(parser.getPredecessor("17"), "dev/2");
+	}
+
+	public void testElementIdChangeIsSkipped() throws IOException
+	{
+		DiffPredecessorParser parser = parse(DIFF);
+		assertFalse(parser.isChanged("8"));
+		assertFalse(parser.isChanged("9"));
+	}
+
+	public void testElementIdOfTheElement() throws IOException
+	{
+		DiffPredecessorParser parser = parse(DIFF);
+		assertTrue(parser.isChanged("44"));
+		assertEquals(parser.getPredecessor("44"), "dev/7");
+	}
+
+	public void testElementNotVisibleInStream() throws IOException
+	{
+		// A version of the transaction that the stream does not see is not in the answer
+		DiffPredecessorParser parser = parse(DIFF);
+		assertTrue(parser.isComplete());
+		assertFalse(parser.isChanged("99"));
+		assertNull(parser.getPredecessor("99"));
+	}
+
+	public void testEmptyAnswer() throws IOException
+	{
+		DiffPredecessorParser parser = parse("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<acResponse/>\n");
+		assertTrue(parser.isComplete());
+		assertFalse(parser.isChanged("12"));
+	}
+
+	public void testErrorIsNotComplete() throws IOException
+	{
+		DiffPredecessorParser parser = parse("<acResponse>\n  <message error=\"true\">Unknown stream: dev</message>\n</acResponse>\n");
+		assertFalse(parser.isComplete());
+	}
+
+	public void testTruncatedAnswerIsNotComplete() throws IOException
+	{
+		DiffPredecessorParser parser = parse(DIFF.substring(0, DIFF.indexOf("<Element eid=\"44\">")));
+		assertFalse(parser.isComplete());
+		assertTrue(parser.isChanged("12"));
+	}
+
+	public void testOtherResponseIsNotComplete() throws IOException
+	{
+		assertFalse(parse("<streams/>").isComplete());
+		assertFalse(parse("").isComplete());
+	}
+
+	public void testVersionsOfTheTransaction() throws IOException, VcsException
+	{
+		AncestorCache cache = new AncestorCache(cacheDir, 100);
+		AcRunProcessExe run = createRunner(cache);
+		List<VersionData> versions = Arrays.asList(version("12", "5"), version("31", "1"), version("99", "3"));
+
+		Map<String, String> result = run.collectPredecessors("dev", "42", versions, parse(DIFF));
+		assertEquals(result.get(AcRunProcessExe.getElementVersionKey("12", "5")), "dev/4");
+		assertTrue(result.containsKey(AcRunProcessExe.getElementVersionKey("31", "1")));
+		assertNull(result.get(AcRunProcessExe.getElementVersionKey("31", "1")));
+		assertFalse(result.containsKey(AcRunProcessExe.getElementVersionKey("99", "3")), "not visible in the stream");
+
+		// All of it, the version that is not visible too, now comes from the cache
+		assertEquals(run.resolvePredecessors("dev", "42", versions), result);
+		cache.close();
+	}
+
+	public void testNothingIsCachedFromIncompleteAnswer() throws IOException
+	{
+		AncestorCache cache = new AncestorCache(cacheDir, 100);
+		AcRunProcessExe run = createRunner(cache);
+		List<VersionData> versions = Arrays.asList(version("12", "5"), version("44", "8"));
+
+		DiffPredecessorParser parser = parse(DIFF.substring(0, DIFF.indexOf("<Element eid=\"44\">")));
+		Map<String, String> result = run.collectPredecessors("dev", "42", versions, parser);
+		assertEquals(result.get(AcRunProcessExe.getElementVersionKey("12", "5")), "dev/4");
+		assertFalse(result.containsKey(AcRunProcessExe.getElementVersionKey("44", "8")));
+		cache.close();
+
+		// Not even what was read before the answer broke off
+		assertFalse(new File(cacheDir, "ancestors.bin").exists());
+	}
+
+	private AcRunProcessExe createRunner(AncestorCache cache)
+	{
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(Constants.SERVER_NAME, "server");
+		properties.put(Constants.SERVER_PORT, "5050");
+		properties.put(Constants.DEPOT, "depot");
+		properties.put(Constants.WATCHSTREAM, "dev");
+		properties.put(Constants.USERNAME, "user");
+		properties.put(Constants.COMMAND_DIR, cacheDir.getPath());
+		AcRunProcessExe run = new AcRunProcessExe(cacheDir, new Settings(cacheDir, properties));
+		run.setAncestorCache(cache);
+		return run;
+	}
+
+	private static VersionData version(String eid, String virtual)
+	{
+		VersionData version = new VersionData();
+		version.setVerEID(eid);
+		version.setVerVirtual(virtual);
+		return version;
+	}
+
+	private static DiffPredecessorParser parse(String output) throws IOException
+	{
+		DiffPredecessorParser parser = new DiffPredecessorParser();
+		OutputSinks.toParser(parser, false, null).consume(new ByteArrayInputStream(output.getBytes("UTF-8")));
+		return parser;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jetbrains.buildServer.util.FileUtil;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the journal behind the caches: reading back what was appended, a
+ * journal that was cut off or has another format, and compaction.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class JournalTest
+{
+	private static final int MAGIC = 0x4a4e4c54;
+	private static final int FORMAT_VERSION = 1;
+
+	private File dir;
+	private File file;
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		dir = FileUtil.createTempDirectory("journal", "");
+		file = new File(dir, "journal.bin");
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		FileUtil.delete(dir);
+	}
+
+	public void testRecordsReadBackInOrder()
+	{
+		Journal journal = createJournal();
+		journal.append("a", "1");
+		journal.append("b", "2");
+		journal.append("a", "3");
+		journal.close();
+
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		journal = createJournal();
+		assertTrue(journal.load(collect(entries)));
+		assertEquals(journal.getRecords(), 3);
+		assertEquals(entries.get("a"), "3");
+		assertEquals(entries.get("b"), "2");
+		assertEquals(entries.size(), 2);
+	}
+
+	public void testMissingJournalIsWhole()
+	{
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		assertTrue(createJournal().load(collect(entries)));
+		assertTrue(entries.isEmpty());
+	}
+
+	public void testRecordCutOffInValue() throws IOException
+	{
+		long firstRecordEnd = writeTwoRecords();
+		truncate(file.length() - 2);
+		checkOnlyFirstRecordSurvives(firstRecordEnd);
+	}
+
+	public void testRecordCutOffInKey() throws IOException
+	{
+		long firstRecordEnd = writeTwoRecords();
+		truncate(firstRecordEnd + 3);
+		checkOnlyFirstRecordSurvives(firstRecordEnd);
+	}
+
+	public void testCutOffHeader() throws IOException
+	{
+		writeTwoRecords();
+		truncate(3);
+
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		Journal journal = createJournal();
+		assertFalse(journal.load(collect(entries)));
+		assertTrue(entries.isEmpty());
+		journal.compact(entries);
+		journal.append("third", "3");
+		journal.close();
+
+		journal = createJournal();
+		assertTrue(journal.load(collect(entries)));
+		assertEquals(entries.get("third"), "3");
+	}
+
+	public void testUnknownFormatIsNotRead() throws IOException
+	{
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION + 1);
+			out.writeUTF("key");
+			out.writeUTF("value");
+		}
+		finally
+		{
+			out.close();
+		}
+
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		assertFalse(createJournal().load(collect(entries)));
+		assertTrue(entries.isEmpty());
+	}
+
+	public void testCompactKeepsOnlyLiveEntries()
+	{
+		Journal journal = createJournal();
+		for (int i = 0; i < 50; ++i)
+		{
+			journal.append("a", String.valueOf(i));
+		}
+		journal.flush();
+		long stale = file.length();
+
+		Map<String, String> live = new LinkedHashMap<String, String>();
+		live.put("a", "49");
+		journal.compact(live);
+		assertEquals(journal.getRecords(), 1);
+		assertTrue(file.length() < stale);
+
+		// Appending goes on after the rewritten records
+		journal.append("b", "1");
+		journal.close();
+
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		journal = createJournal();
+		assertTrue(journal.load(collect(entries)));
+		assertEquals(journal.getRecords(), 2);
+		assertEquals(entries.get("a"), "49");
+		assertEquals(entries.get("b"), "1");
+	}
+
+	private Journal createJournal()
+	{
+		return new Journal(file, MAGIC, FORMAT_VERSION, "test journal");
+	}
+
+	// returns where the first record ends in the journal
+	private long writeTwoRecords()
+	{
+		Journal journal = createJournal();
+		journal.append("first", "stream/1");
+		journal.flush();
+		long firstRecordEnd = file.length();
+		journal.append("second", "stream/2");
+		journal.close();
+		return firstRecordEnd;
+	}
+
+	private void checkOnlyFirstRecordSurvives(long firstRecordEnd)
+	{
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		Journal journal = createJournal();
+		assertFalse(journal.load(collect(entries)), "a cut off journal was taken as whole");
+		assertEquals(entries.get("first"), "stream/1");
+		assertFalse(entries.containsKey("second"));
+
+		journal.compact(entries);
+		assertEquals(file.length(), firstRecordEnd, "the cut off record was not dropped");
+
+		// What is written after the cut off record has to read back
+		journal.append("third", "stream/3");
+		journal.close();
+
+		entries.clear();
+		journal = createJournal();
+		assertTrue(journal.load(collect(entries)));
+		assertEquals(entries.get("first"), "stream/1");
+		assertEquals(entries.get("third"), "stream/3");
+	}
+
+	private void truncate(long length) throws IOException
+	{
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try
+		{
+			out.setLength(length);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static Journal.Visitor collect(final Map<String, String> entries)
+	{
+		return new Journal.Visitor() {
+			public void record(@NotNull String key, @NotNull String value)
+			{
+				entries.put(key, value);
+			}
+		};
+	}
+}
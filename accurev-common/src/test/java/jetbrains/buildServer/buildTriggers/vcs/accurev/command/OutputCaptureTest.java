@@ -0,0 +1,151 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import jetbrains.buildServer.util.FileUtil;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests that the capture keeps the head and the tail of the output, and all of
+ * it in a file once it does not fit in memory.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class OutputCaptureTest
+{
+	public void testOutputThatFits() throws IOException
+	{
+		OutputCapture capture = new OutputCapture(16);
+		write(capture, "0123456789abcdef", 3);
+		capture.finish();
+
+		assertEquals(capture.getText(), "0123456789abcdef");
+		assertEquals(capture.getSize(), 16);
+		assertFalse(capture.isTruncated());
+		assertNull(capture.getFile());
+		capture.dispose();
+	}
+
+	public void testEmptyOutput() throws IOException
+	{
+		OutputCapture capture = new OutputCapture(16);
+		assertTrue(capture.consume(new ByteArrayInputStream(new byte[0])));
+		assertEquals(capture.getText(), "");
+		assertFalse(capture.isTruncated());
+		capture.dispose();
+	}
+
+	public void testHeadAndTailAreKept() throws IOException
+	{
+		String output = makeOutput(1000);
+		for (int chunk = 1; chunk <= 40; chunk += 3)
+		{
+			OutputCapture capture = new OutputCapture(20);
+			write(capture, output, chunk);
+			capture.finish();
+
+			String text = capture.getText();
+			assertTrue(capture.isTruncated());
+			assertTrue(text.startsWith(output.substring(0, 10)), "chunk " + chunk + ": " + text);
+			assertTrue(text.endsWith(output.substring(990)), "chunk " + chunk + ": " + text);
+			assertTrue(text.contains("[980 bytes left out"), "chunk " + chunk + ": " + text);
+			assertEquals(capture.getSize(), 1000);
+			capture.dispose();
+		}
+	}
+
+	public void testWholeOutputIsSpilledToFile() throws IOException
+	{
+		String output = makeOutput(5000);
+		for (int chunk = 1; chunk <= 100; chunk += 33)
+		{
+			OutputCapture capture = new OutputCapture(64);
+			write(capture, output, chunk);
+			capture.finish();
+
+			File file = capture.getFile();
+			assertNotNull(file);
+			assertEquals(readFile(file), output, "chunk " + chunk);
+			assertTrue(capture.getText().contains(file.getAbsolutePath()));
+
+			capture.dispose();
+			assertNull(capture.getFile());
+			assertFalse(file.exists());
+		}
+	}
+
+	public void testConsume() throws IOException
+	{
+		String output = makeOutput(100000);
+		OutputCapture capture = new OutputCapture(1024);
+		assertTrue(capture.consume(new ByteArrayInputStream(output.getBytes("UTF-8"))));
+
+		assertEquals(capture.getSize(), 100000);
+		assertTrue(capture.getText().startsWith(output.substring(0, 512)));
+		assertTrue(capture.getText().endsWith(output.substring(100000 - 512)));
+		assertEquals(readFile(capture.getFile()), output);
+		capture.dispose();
+	}
+
+	// ASCII, and never the same for a while, so misplaced bytes show
+	private static String makeOutput(int length)
+	{
+		StringBuilder result = new StringBuilder(length);
+		for (int i = 0; i < length; ++i)
+		{
+			result.append((char)('!' + (i * 7 + i / 94) % 94));
+		}
+		return result.toString();
+	}
+
+	private static void write(OutputCapture capture, String output, int chunk) throws IOException
+	{
+		byte[] bytes = output.getBytes("UTF-8");
+		for (int off = 0; off < bytes.length; off += chunk)
+		{
+			capture.write(bytes, off, Math.min(chunk, bytes.length - off));
+		}
+	}
+
+	private static String readFile(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			FileUtil.copy(in, out);
+			return out.toString("UTF-8");
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
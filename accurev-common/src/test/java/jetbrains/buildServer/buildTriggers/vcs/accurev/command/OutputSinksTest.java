@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the output sinks on canned command output.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class OutputSinksTest
+{
+	private static final String XML = "<streams><stream name=\"R&D\" depot=\"d\"/><stream name=\"b&amp;c\" depot=\"d\"/></streams>";
+
+	public void testText() throws IOException
+	{
+		StringBuffer text = new StringBuffer("> ");
+		assertTrue(OutputSinks.toText(text).consume(stream("one\ntwo\n")));
+		assertEquals(text.toString(), "> one\ntwo\n");
+	}
+
+	public void testStream() throws IOException
+	{
+		byte[] output = makeOutput(100000);
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		assertTrue(OutputSinks.toStream(target).consume(new ByteArrayInputStream(output)));
+		assertEquals(target.toByteArray(), output);
+	}
+
+	public void testFile() throws IOException
+	{
+		byte[] output = makeOutput(200000);
+		File file = File.createTempFile("output", ".tmp");
+		try
+		{
+			assertTrue(OutputSinks.toFile(file).consume(new ByteArrayInputStream(output)));
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			FileInputStream in = new FileInputStream(file);
+			try
+			{
+				OutputSinks.toStream(content).consume(in);
+			}
+			finally
+			{
+				in.close();
+			}
+			assertEquals(content.toByteArray(), output);
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	public void testDiscard() throws IOException
+	{
+		InputStream output = stream("whatever");
+		assertTrue(OutputSinks.discard().consume(output));
+		assertEquals(output.read(), -1);
+	}
+
+	public void testParserEscapesStrayAmpersands() throws IOException
+	{
+		NameHandler handler = new NameHandler();
+		OutputSinks.ParserSink sink = OutputSinks.toParser(handler, true, null);
+		assertTrue(sink.consume(stream(XML)));
+		assertNull(sink.getError());
+		assertEquals(handler.names, Arrays.asList("R&D", "b&c"));
+	}
+
+	public void testParserKeepsTheOutput() throws IOException
+	{
+		OutputCapture keep = new OutputCapture(1024);
+		OutputSinks.ParserSink sink = OutputSinks.toParser(new NameHandler(), true, keep);
+		assertTrue(sink.consume(stream(XML)));
+		assertEquals(keep.getText(), XML);
+	}
+
+	public void testParserOnNoOutput() throws IOException
+	{
+		NameHandler handler = new NameHandler();
+		OutputSinks.ParserSink sink = OutputSinks.toParser(handler, true, null);
+		assertTrue(sink.consume(stream("")));
+		assertNull(sink.getError());
+		assertTrue(handler.names.isEmpty());
+	}
+
+	public void testParserError() throws IOException
+	{
+		String output = "<streams><stream name=\"a\"/><oops</streams>";
+
+		OutputSinks.ParserSink abort = OutputSinks.toParser(new NameHandler(), true, null);
+		assertFalse(abort.consume(stream(output)));
+		assertNotNull(abort.getError());
+
+		// Without aborting, the rest of the output is read and dropped
+		OutputCapture keep = new OutputCapture(1024);
+		InputStream in = stream(output + makeText(50000));
+		OutputSinks.ParserSink drop = OutputSinks.toParser(new NameHandler(), false, keep);
+		assertTrue(drop.consume(in));
+		assertNotNull(drop.getError());
+		assertEquals(in.read(), -1);
+		assertEquals(keep.getSize(), output.length() + 50000);
+	}
+
+	public void testDocument() throws Exception
+	{
+		OutputSinks.DocumentSink sink = OutputSinks.toDocument();
+		assertTrue(sink.consume(stream(XML)));
+		Document document = sink.getDocument();
+		assertNotNull(document);
+		assertEquals(document.getDocumentElement().getElementsByTagName("stream").getLength(), 2);
+
+		assertTrue(sink.consume(stream("")));
+		assertNull(sink.getDocument());
+
+		assertTrue(sink.consume(stream("<streams>")));
+		try
+		{
+			sink.getDocument();
+			fail("The error was not reported");
+		}
+		catch (SAXException ex)
+		{
+			/* expected */
+		}
+	}
+
+	private static InputStream stream(String text) throws IOException
+	{
+		return new ByteArrayInputStream(text.getBytes("UTF-8"));
+	}
+
+	private static byte[] makeOutput(int length)
+	{
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; ++i)
+		{
+			result[i] = (byte)(i * 31 + i / 251);
+		}
+		return result;
+	}
+
+	private static String makeText(int length)
+	{
+		char[] result = new char[length];
+		Arrays.fill(result, 'x');
+		return new String(result);
+	}
+
+	private static class NameHandler extends DefaultHandler
+	{
+		final List<String> names = new ArrayList<String>();
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+		{
+			if ("stream".equals(qName))
+				names.add(attributes.getValue("name"));
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the order in which the governor hands out process slots: queues in
+ * turn, interactive before background, and large requests neither starved nor
+ * larger than the limit.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class ProcessGovernorTest
+{
+	private final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+	public void testQueuesAreServedInTurn() throws Exception
+	{
+		ProcessGovernor governor = new ProcessGovernor("server", 1, 0);
+		ProcessGovernor.Permit hold = governor.acquire("x", ProcessGovernor.Priority.BACKGROUND, 1);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(startWaiting(governor, "a", ProcessGovernor.Priority.BACKGROUND, 1, "a1"));
+		threads.add(startWaiting(governor, "a", ProcessGovernor.Priority.BACKGROUND, 1, "a2"));
+		threads.add(startWaiting(governor, "a", ProcessGovernor.Priority.BACKGROUND, 1, "a3"));
+		threads.add(startWaiting(governor, "b", ProcessGovernor.Priority.BACKGROUND, 1, "b1"));
+		threads.add(startWaiting(governor, "c", ProcessGovernor.Priority.BACKGROUND, 1, "c1"));
+		hold.release();
+		join(threads);
+
+		assertEquals(order, Arrays.asList("a1", "b1", "c1", "a2", "a3"));
+	}
+
+	public void testInteractiveIsServedFirst() throws Exception
+	{
+		ProcessGovernor governor = new ProcessGovernor("server", 1, 0);
+		ProcessGovernor.Permit hold = governor.acquire("x", ProcessGovernor.Priority.BACKGROUND, 1);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(startWaiting(governor, "a", ProcessGovernor.Priority.BACKGROUND, 1, "background"));
+		threads.add(startWaiting(governor, "b", ProcessGovernor.Priority.INTERACTIVE, 1, "interactive"));
+		hold.release();
+		join(threads);
+
+		assertEquals(order, Arrays.asList("interactive", "background"));
+	}
+
+	public void testOversizedRequestGetsAllSlots() throws Exception
+	{
+		ProcessGovernor governor = new ProcessGovernor("server", 3, 0);
+		ProcessGovernor.Permit all = governor.acquire("a", ProcessGovernor.Priority.BACKGROUND, 10);
+		assertNull(governor.tryAcquire(1));
+		all.release();
+
+		ProcessGovernor.Permit one = governor.tryAcquire(1);
+		assertNotNull(one);
+		assertNotNull(governor.tryAcquire(2));
+		assertNull(governor.tryAcquire(1));
+	}
+
+	public void testLargeRequestIsNotStarved() throws Exception
+	{
+		ProcessGovernor governor = new ProcessGovernor("server", 2, 0);
+		ProcessGovernor.Permit hold = governor.acquire("x", ProcessGovernor.Priority.BACKGROUND, 1);
+
+		// One slot is free, but the large request is first in line
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(startWaiting(governor, "a", ProcessGovernor.Priority.BACKGROUND, 5, "large"));
+		threads.add(startWaiting(governor, "b", ProcessGovernor.Priority.BACKGROUND, 1, "small"));
+		assertTrue(order.isEmpty());
+		assertNull(governor.tryAcquire(1));
+		hold.release();
+		join(threads);
+
+		assertEquals(order, Arrays.asList("large", "small"));
+	}
+
+	public void testWaitTimesOut() throws Exception
+	{
+		ProcessGovernor governor = new ProcessGovernor("server", 1, 100);
+		ProcessGovernor.Permit hold = governor.acquire("a", ProcessGovernor.Priority.BACKGROUND, 1);
+		try
+		{
+			governor.acquire("b", ProcessGovernor.Priority.BACKGROUND, 1);
+			fail("The wait did not time out");
+		}
+		catch (VcsException ex)
+		{
+			assertTrue(ex.getMessage().contains("Timed out"), ex.getMessage());
+		}
+
+		// The ticket that timed out is gone and holds nobody up
+		hold.release();
+		assertNotNull(governor.tryAcquire(1));
+	}
+
+	public void testReleaseIsIdempotent() throws Exception
+	{
+		ProcessGovernor governor = new ProcessGovernor("server", 1, 0);
+		ProcessGovernor.Permit permit = governor.acquire("a", ProcessGovernor.Priority.BACKGROUND, 1);
+		permit.release();
+		ProcessGovernor.Permit other = governor.tryAcquire(1);
+		assertNotNull(other);
+		permit.release();
+		assertNull(governor.tryAcquire(1));
+	}
+
+	// starts a thread that waits for slots, notes its name once it has them and
+	// releases them; returns once the thread is waiting
+	private Thread startWaiting(final ProcessGovernor governor, final String queue, final ProcessGovernor.Priority priority,
+		final int count, final String name) throws InterruptedException
+	{
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					ProcessGovernor.Permit permit = governor.acquire(queue, priority, count);
+					order.add(name);
+					permit.release();
+				}
+				catch (VcsException ex)
+				{
+					order.add(name + ": " + ex.getMessage());
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (thread.getState() != Thread.State.WAITING)
+		{
+			if (System.currentTimeMillis() > deadline)
+				fail(name + " is not waiting for a slot: " + thread.getState());
+			Thread.sleep(5);
+		}
+		return thread;
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException
+	{
+		for (Thread thread : threads)
+		{
+			thread.join(10000);
+			assertTrue(!thread.isAlive(), thread.getName() + " did not finish");
+		}
+	}
+}
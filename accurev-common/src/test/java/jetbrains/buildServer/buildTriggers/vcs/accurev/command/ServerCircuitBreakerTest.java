@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.Settings;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the circuit breaker of an AccuRev server, with a fake clock and probe:
+ * when it opens, failing fast while open, the back-off delay, and closing
+ * again after a single probe.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class ServerCircuitBreakerTest
+{
+	private File workDir;
+	private AcCommandContext context;
+	private TestBreaker breaker;
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		workDir = FileUtil.createTempDirectory("breaker", "");
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(Constants.SERVER_NAME, "server");
+		properties.put(Constants.SERVER_PORT, "5050");
+		properties.put(Constants.DEPOT, "depot");
+		properties.put(Constants.WATCHSTREAM, "dev");
+		properties.put(Constants.USERNAME, "user");
+		properties.put(Constants.COMMAND_DIR, workDir.getPath());
+		context = AcCommandContext.create(new Settings(workDir, properties), workDir);
+		breaker = new TestBreaker();
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		FileUtil.delete(workDir);
+	}
+
+	public void testOpensAfterThreeConnectionErrors() throws VcsException
+	{
+		breaker.afterCommand(true);
+		breaker.afterCommand(true);
+		breaker.afterCommand(false); // a command got through, start counting again
+		breaker.afterCommand(true);
+		breaker.afterCommand(true);
+		assertFalse(breaker.isOpen());
+		breaker.beforeCommand(context);
+
+		breaker.afterCommand(true);
+		assertTrue(breaker.isOpen());
+	}
+
+	public void testFailsFastWhileOpen()
+	{
+		open();
+		for (int i = 0; i < 3; ++i)
+		{
+			checkFailsFast();
+			breaker.now += 3000;
+		}
+		assertEquals(breaker.probes, 0, "probed before the delay had passed");
+	}
+
+	public void testBacksOffExponentially()
+	{
+		open();
+		long[] delays = { 10, 20, 40, 80, 160, 300, 300 };
+		for (long delay : delays)
+		{
+			int probes = breaker.probes;
+			breaker.now += delay * 1000 - 1;
+			checkFailsFast();
+			assertEquals(breaker.probes, probes, "probed before " + delay + " s");
+
+			breaker.now += 1;
+			checkFailsFast(); // the probe fails
+			assertEquals(breaker.probes, probes + 1, "no probe after " + delay + " s");
+		}
+		assertTrue(breaker.isOpen());
+	}
+
+	public void testClosesWhenProbeSucceeds() throws VcsException
+	{
+		open();
+		breaker.now += 10000;
+		breaker.reachable = true;
+		breaker.beforeCommand(context);
+		assertEquals(breaker.probes, 1);
+		assertFalse(breaker.isOpen());
+
+		breaker.beforeCommand(context);
+		assertEquals(breaker.probes, 1, "probed while closed");
+
+		// Closing starts the count of failures over
+		breaker.afterCommand(true);
+		breaker.afterCommand(true);
+		assertFalse(breaker.isOpen());
+	}
+
+	public void testOneProbeAtATime() throws Exception
+	{
+		open();
+		breaker.now += 10000;
+		breaker.reachable = true;
+		breaker.probeStarted = new CountDownLatch(1);
+		breaker.probeDone = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<Object> probe = executor.submit(new Callable<Object>() {
+				public Object call() throws VcsException
+				{
+					breaker.beforeCommand(context);
+					return null;
+				}
+			});
+			assertTrue(breaker.probeStarted.await(10, TimeUnit.SECONDS));
+
+			// Others fail right away while the probe runs
+			checkFailsFast();
+			breaker.probeDone.countDown();
+			probe.get(10, TimeUnit.SECONDS);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		assertEquals(breaker.probes, 1);
+		assertFalse(breaker.isOpen());
+	}
+
+	private void open()
+	{
+		for (int i = 0; i < 3; ++i)
+		{
+			breaker.afterCommand(true);
+		}
+		assertTrue(breaker.isOpen());
+	}
+
+	private void checkFailsFast()
+	{
+		try
+		{
+			breaker.beforeCommand(context);
+			fail("the command was let through while the server is unreachable");
+		}
+		catch (VcsException ex)
+		{
+			assertTrue(ex.getMessage().contains("is unreachable"), ex.getMessage());
+		}
+	}
+
+	/**
+	 * A breaker with the default settings, a clock that only moves when told to
+	 * and a probe that answers as told.
+	 */
+	private static class TestBreaker extends ServerCircuitBreaker
+	{
+		volatile long now = 1000000;
+		volatile boolean reachable;
+		volatile int probes;
+		CountDownLatch probeStarted;
+		CountDownLatch probeDone;
+
+		public TestBreaker()
+		{
+			super("server:5050", 3, 10000, 300000);
+		}
+
+		boolean ping(@NotNull AcCommandContext context) throws VcsException
+		{
+			++probes;
+			if (probeStarted != null)
+			{
+				probeStarted.countDown();
+				try
+				{
+					probeDone.await();
+				}
+				catch (InterruptedException ex)
+				{
+					throw new VcsException("interrupted", ex);
+				}
+			}
+			return reachable;
+		}
+
+		long currentTimeMillis()
+		{
+			return now;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.accurev.common.data.StreamData;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the stream hierarchy of a depot: the ancestry of a stream, and when
+ * the hierarchy has to be loaded again.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class StreamTopologyTest
+{
+	private long now;
+	private StreamTopology topology;
+
+	@BeforeMethod
+	public void setUp()
+	{
+		now = 1000000;
+		topology = new StreamTopology() {
+			long currentTimeMillis()
+			{
+				return now;
+			}
+		};
+	}
+
+	public void testAncestryOfMultiLevelChain()
+	{
+		List<StreamData> streams = new ArrayList<StreamData>();
+		streams.add(stream("depot", null, "1", StreamData.DYNAMIC_TYPE));
+		streams.add(stream("int", "depot", "2", StreamData.DYNAMIC_TYPE));
+		streams.add(stream("dev", "int", "3", StreamData.DYNAMIC_TYPE));
+		streams.add(stream("ws_user", "dev", "4", StreamData.WORKSPACE_TYPE));
+		streams.add(stream("other", "depot", "5", StreamData.DYNAMIC_TYPE));
+		topology.update(streams, "100");
+
+		assertEquals(topology.getAncestry("ws_user"), Arrays.asList("ws_user", "dev", "int", "depot"));
+		assertEquals(topology.getAncestry("other"), Arrays.asList("other", "depot"));
+		assertEquals(topology.getAncestry("depot"), Collections.singletonList("depot"));
+		assertTrue(topology.getAncestry("unknown").isEmpty());
+		assertEquals(topology.getBasis("dev"), "int");
+		assertNull(topology.getBasis("depot"));
+		assertEquals(topology.getStreamName("3"), "dev");
+	}
+
+	public void testAncestryThroughPassThroughStream()
+	{
+		List<StreamData> streams = new ArrayList<StreamData>();
+		streams.add(stream("depot", null, "1", StreamData.DYNAMIC_TYPE));
+		streams.add(stream("pass", "depot", "2", StreamData.PASS_THROUGH_TYPE));
+		streams.add(stream("dev", "pass", "3", StreamData.DYNAMIC_TYPE));
+		topology.update(streams, "100");
+
+		assertEquals(topology.getAncestry("dev"), Arrays.asList("dev", "pass", "depot"));
+		assertTrue(topology.isPassThrough("pass"));
+		assertFalse(topology.isPassThrough("dev"));
+		assertFalse(topology.isPassThrough("unknown"));
+	}
+
+	public void testTimelock()
+	{
+		StreamData locked = stream("dev", "depot", "2", StreamData.DYNAMIC_TYPE);
+		locked.setBasisStreamTime("1262304000");
+		topology.update(Arrays.asList(stream("depot", null, "1", StreamData.DYNAMIC_TYPE), locked), "100");
+
+		assertEquals(topology.getTimelock("dev"), "1262304000");
+		assertNull(topology.getTimelock("depot"));
+	}
+
+	public void testReloadWhenWatermarkMoves()
+	{
+		assertTrue(topology.needsReload(null), "nothing loaded yet");
+		topology.update(Collections.singletonList(stream("depot", null, "1", StreamData.DYNAMIC_TYPE)), "100");
+
+		assertFalse(topology.needsReload("100"));
+		assertFalse(topology.needsReload(null), "any topology is good enough without a watermark");
+		assertTrue(topology.needsReload("101"));
+
+		topology.update(Arrays.asList(stream("depot", null, "1", StreamData.DYNAMIC_TYPE),
+				stream("dev", "depot", "2", StreamData.DYNAMIC_TYPE)), "101");
+		assertFalse(topology.needsReload("101"));
+		assertEquals(topology.getAncestry("dev"), Arrays.asList("dev", "depot"));
+
+		topology.invalidate();
+		assertTrue(topology.needsReload("101"));
+		assertFalse(topology.exists("dev"));
+	}
+
+	public void testReloadOnMissAtMostEveryFiveSeconds()
+	{
+		assertTrue(topology.shouldReloadOnMiss(), "nothing loaded yet");
+		topology.update(Collections.singletonList(stream("depot", null, "1", StreamData.DYNAMIC_TYPE)), "100");
+		assertFalse(topology.shouldReloadOnMiss());
+
+		now += 5000;
+		assertFalse(topology.shouldReloadOnMiss());
+		now += 1;
+		assertTrue(topology.shouldReloadOnMiss());
+
+		// Loading again starts the interval over
+		topology.update(Collections.singletonList(stream("depot", null, "1", StreamData.DYNAMIC_TYPE)), "100");
+		assertFalse(topology.shouldReloadOnMiss());
+	}
+
+	private static StreamData stream(String name, String basis, String number, String type)
+	{
+		StreamData stream = new StreamData();
+		stream.setName(name);
+		stream.setBasisName(basis);
+		stream.setNumber(number);
+		stream.setType(type);
+		return stream;
+	}
+}
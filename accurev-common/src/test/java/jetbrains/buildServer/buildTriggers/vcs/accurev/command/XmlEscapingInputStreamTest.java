@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the escaping of stray '&' characters, also when the input arrives a
+ * few bytes at a time, so that a reference is split over reads.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class XmlEscapingInputStreamTest
+{
+	public void testValidReferencesAreKept() throws IOException
+	{
+		check("a &amp; &lt;b&gt; &quot;c&quot; &apos;d&apos;", "a &amp; &lt;b&gt; &quot;c&quot; &apos;d&apos;");
+		check("&#38; &#x26; &#x10FFFF;", "&#38; &#x26; &#x10FFFF;");
+	}
+
+	public void testStrayAmpersandsAreEscaped() throws IOException
+	{
+		check("R&D", "R&amp;D");
+		check("a & b", "a &amp; b");
+		check("<c comment=\"x&y\"/>", "<c comment=\"x&amp;y\"/>");
+		check("&&amp;&", "&amp;&amp;&amp;");
+		check("end&", "end&amp;");
+		check("&", "&amp;");
+	}
+
+	public void testInvalidReferencesAreEscaped() throws IOException
+	{
+		check("&;", "&amp;;");
+		check("&#;", "&amp;#;");
+		check("&#x;", "&amp;#x;");
+		check("&#12a;", "&amp;#12a;");
+		check("&#xZZ;", "&amp;#xZZ;");
+		check("&nbsp;", "&amp;nbsp;");
+		check("&amp", "&amp;amp");
+		check("&AMP;", "&amp;AMP;");
+	}
+
+	public void testLongNamesAreEscaped() throws IOException
+	{
+		// Longer than any valid reference; the rest passes through as it is
+		check("&abcdefghijklm;", "&amp;abcdefghijklm;");
+		check("&#1234567890;", "&amp;#1234567890;");
+	}
+
+	public void testNonAsciiIsPassedThrough() throws IOException
+	{
+		byte[] input = "caf\u00e9 & cr\u00e8me".getBytes("UTF-8");
+		byte[] expected = "caf\u00e9 &amp; cr\u00e8me".getBytes("UTF-8");
+		for (int chunk = 1; chunk <= 4; ++chunk)
+		{
+			assertEquals(readAll(new XmlEscapingInputStream(new TrickleInputStream(input, chunk)), 3), expected);
+		}
+	}
+
+	public void testSkip() throws IOException
+	{
+		InputStream in = new XmlEscapingInputStream(new ByteArrayInputStream("a&b".getBytes("UTF-8")));
+		assertEquals(in.skip(3), 3);
+		assertEquals(new String(readAll(in, 8), "UTF-8"), "mp;b");
+	}
+
+	// reads the escaped input every way there is: byte by byte, and with
+	// buffers of several sizes over input that arrives in chunks of several sizes
+	private static void check(String input, String expected) throws IOException
+	{
+		byte[] bytes = input.getBytes("UTF-8");
+
+		InputStream in = new XmlEscapingInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int b = in.read(); b >= 0; b = in.read())
+		{
+			out.write(b);
+		}
+		assertEquals(new String(out.toByteArray(), "UTF-8"), expected, "read()");
+
+		for (int chunk = 1; chunk <= 5; ++chunk)
+		{
+			for (int buffer = 1; buffer <= 16; buffer += 3)
+			{
+				in = new XmlEscapingInputStream(new TrickleInputStream(bytes, chunk));
+				assertEquals(new String(readAll(in, buffer), "UTF-8"), expected, "chunk " + chunk + ", buffer " + buffer);
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream in, int bufferSize) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[bufferSize];
+		int count;
+		while ((count = in.read(buffer, 0, buffer.length)) >= 0)
+		{
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	/** Hands out the input a few bytes at a time, like a pipe does. */
+	private static class TrickleInputStream extends InputStream
+	{
+		private final byte[] data;
+		private final int chunk;
+		private int pos;
+		private int chunkLeft;
+
+		public TrickleInputStream(byte[] data, int chunk)
+		{
+			this.data = data;
+			this.chunk = chunk;
+		}
+
+		public int read()
+		{
+			if (pos >= data.length)
+				return -1;
+			if (chunkLeft == 0)
+				chunkLeft = chunk;
+			--chunkLeft;
+			return data[pos++] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len)
+		{
+			if (pos >= data.length)
+				return -1;
+			if (chunkLeft == 0)
+				chunkLeft = chunk;
+			int count = Math.min(Math.min(len, chunkLeft), data.length - pos);
+			System.arraycopy(data, pos, b, off, count);
+			pos += count;
+			chunkLeft -= count;
+			return count;
+		}
+
+		public int available()
+		{
+			return Math.min(chunkLeft, data.length - pos);
+		}
+	}
+}
@@ -26,6 +26,7 @@ import jetbrains.buildServer.buildTriggers.vcs.AbstractVcsPropertiesProcessor;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcSpecialLogin;
 import jetbrains.buildServer.util.FileUtil;
@@ -36,9 +37,9 @@ import jetbrains.buildServer.AgentSideCheckoutAbility;
 import jetbrains.buildServer.Used;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -46,9 +47,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import com.accurev.common.data.*;
 import com.accurev.common.parsers.HistoryParser;
@@ -82,6 +92,17 @@ public class AccuRevVcsSupport
 {
 	//private VcsManager acVcsManager;
 	private File acDefaultWorkFolderParent;
+	private AncestorCache acAncestorCache;
+	private ExecutorService acHistoryExecutor;
+	private Semaphore acHistoryPermits;
+	private int acHistoryThreads;
+	private int acHistoryWindow;
+	private volatile boolean acShuttingDown;
+	private DepotWatermarkPoller acWatermarkPoller;
+	private ChangesCache acChangesCache;
+	private ContentCache acContentCache;
+	private ContentPrefetcher acContentPrefetcher;
+	private ExecutorService acPatchExecutor;
 
 	public AccuRevVcsSupport(
 			@NotNull final VcsManager vcsManager,
@@ -91,9 +112,55 @@ public class AccuRevVcsSupport
 	{
 	    //acVcsManager = vcsManager;
 		acDefaultWorkFolderParent = new File(paths.getCachesDir());
+		acAncestorCache = new AncestorCache(new File(acDefaultWorkFolderParent, "accurev"),
+				TeamCityProperties.getInteger("teamcity.accurev.ancestorCache.maxEntries", 200000));
+		acHistoryThreads = TeamCityProperties.getInteger("teamcity.accurev.historyThreads", 4);
+		acHistoryPermits = new Semaphore(acHistoryThreads, true);
+		acHistoryWindow = Math.max(1, TeamCityProperties.getInteger("teamcity.accurev.historyWindow", 500));
+		acHistoryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "AccuRev history");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		acPatchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "AccuRev patch content");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		acWatermarkPoller = new DepotWatermarkPoller(acDefaultWorkFolderParent,
+				TeamCityProperties.getInteger("teamcity.accurev.watermarkPollInterval", 15));
+		acChangesCache = new ChangesCache(TeamCityProperties.getInteger("teamcity.accurev.changesCache.maxEntries", 32));
+		acContentCache = new ContentCache(new File(new File(acDefaultWorkFolderParent, "accurev"), "content"),
+				TeamCityProperties.getInteger("teamcity.accurev.contentCache.maxSizeMb", 1024) * 1024L * 1024L,
+				TeamCityProperties.getInteger("teamcity.accurev.contentCache.maxEntries", 200000));
+		if (TeamCityProperties.getBoolean("teamcity.accurev.contentPrefetch.enabled"))
+		{
+			acContentPrefetcher = new ContentPrefetcher(acContentCache, acDefaultWorkFolderParent,
+					Math.max(1, TeamCityProperties.getInteger("teamcity.accurev.contentPrefetch.threads", 2)),
+					TeamCityProperties.getInteger("teamcity.accurev.contentPrefetch.maxQueued", 2000));
+		}
 		
 		AccurevPromoter promoter = new AccurevPromoter();
 		eventDispatcher.addListener(promoter);
+		eventDispatcher.addListener(new BuildServerAdapter() {
+			public void serverShutdown()
+			{
+				acShuttingDown = true;
+				acWatermarkPoller.shutdown();
+				acHistoryExecutor.shutdownNow();
+				acPatchExecutor.shutdownNow();
+				if (acContentPrefetcher != null)
+					acContentPrefetcher.shutdown();
+				acAncestorCache.close();
+				acContentCache.close();
+			}
+		});
 	}
 	
 	@NotNull
@@ -301,12 +368,11 @@ public class AccuRevVcsSupport
     @NotNull
     public String getCurrentVersion(final VcsRoot root) throws VcsException
     {
-        // TODO DCN 18SEP09 Not exactly sure what we're supposed to return here, given that we're not supposed to implement this with "expensive" mode.
+    	// The depot watermark, kept up to date by the poller. Cheap enough for TeamCity
+    	// to ask on every check for changes, see isCurrentVersionExpensive().
     	Settings settings = createSettings(root);
     	
-    	AcRunProcess cmd = AcRunProcessExe.getInstance(settings, acDefaultWorkFolderParent);
-    	
-    	return cmd.getLastTransactionId(settings.getDepot());
+    	return acWatermarkPoller.getWatermark(settings);
     }
 
     public String describeVcsRoot(final VcsRoot vcsRoot)
@@ -391,7 +457,10 @@ public class AccuRevVcsSupport
 
     public boolean isCurrentVersionExpensive()
     {
-        return true;
+    	// The current version comes from memory, so TeamCity can compare it with the
+    	// last seen version and skip collecting changes when nothing happened.
+    	// Set the property to fall back to the old behaviour.
+        return TeamCityProperties.getBoolean("teamcity.accurev.currentVersionIsExpensive");
     }
 
     @Nullable
@@ -413,10 +482,11 @@ public class AccuRevVcsSupport
             throw new VcsException(message);
         }
 
-        RunProcess.setAccuRevExecutable(cmdPath);
-        Loggers.VCS.info("Executable: " + RunProcess.getAccuRevExecutable());
+        AcCommandContext context = AcCommandContext.create(settings, acDefaultWorkFolderParent)
+        	.withPriority(ProcessGovernor.Priority.INTERACTIVE);
+        Loggers.VCS.info("Executable: " + context.getExecutable());
         
-        AcSecurityProcess sec = new AcSecurityProcess();
+        AcSecurityProcess sec = new AcSecurityProcess(context);
         /*
         //DON'T REPLACE WITH AcRunProcess.getInstance(). This is a special method.
         sec.setSessionToken(new SessionToken(settings.getServerName() + ":" + settings.getServerPort(), "", settings.getUsername()));
@@ -425,7 +495,7 @@ public class AccuRevVcsSupport
         String token = sec.Login(settings.getUsername(), settings.getPassword());
         sec.setSessionToken(new SessionToken(settings.getServerName() + ":" + settings.getServerPort(), token, settings.getUsername()));
 		*/
-        int[] ver = sec.getAccuRevServerVersion();
+        int[] ver = sec.getServerVersion();
         StringBuilder vb = new StringBuilder();
         for (int i = 0; i < ver.length; ++i)
         {
@@ -441,7 +511,7 @@ public class AccuRevVcsSupport
  */        
         Loggers.VCS.info("AccuRev Server version: " + vb.toString());
 
-		AcRunProcess cmd = new AcRunProcessExe(acDefaultWorkFolderParent);
+		AcRunProcess cmd = new AcRunProcessExe(context);
 		//cmd.setSessionToken(new SessionToken(settings.getServerName() + ":" + settings.getServerPort(), token, settings.getUsername()));
 		if (!cmd.doesStreamExist(settings.getDepot(), settings.getWatchStream()))
 		{
@@ -476,8 +546,7 @@ public class AccuRevVcsSupport
         String stream = settings.getWatchStream();
         Loggers.VCS.info(String.format("[XX] collectBuildChanges: depot '%s', stream '%s'", depot, stream));
 
-        AcRunProcessExe run = (AcRunProcessExe)AcRunProcessExe.getInstance(settings, acDefaultWorkFolderParent);
-        String currentVersion = run.getLastTransactionId(depot);
+        String currentVersion = acWatermarkPoller.getWatermark(settings);
         
         return collectBuildChanges(root, fromVersion, currentVersion, checkoutRules);
     }
@@ -489,7 +558,7 @@ public class AccuRevVcsSupport
 	{
         Loggers.VCS.info("[XX] collectBuildChanges: from " + fromVersion + " to " + currentVersion);
         
-        Settings settings = createSettings(root);
+        final Settings settings = createSettings(root);
         String depot = settings.getDepot();
         String stream = settings.getWatchStream();
         Loggers.VCS.info(String.format("[XX] collectBuildChanges: depot '%s', stream '%s'", depot, stream));
@@ -500,25 +569,26 @@ public class AccuRevVcsSupport
             return result;
         }
 
-        try
+        // Roots on the same stream share the collected changes
+        List<ModificationData> collected = acChangesCache.get(ChangesCache.makeKey(settings, fromVersion, currentVersion),
+        		new ChangesCache.Collector() {
+        			@NotNull
+        			public List<ModificationData> collect() throws VcsException
+        			{
+        				return collectStreamModifications(root, settings, fromVersion, currentVersion);
+        			}
+        		});
+        for (ModificationData mod : collected)
         {
-            XPathFactory factory = XPathFactory.newInstance();
-            XPath xPath = factory.newXPath();
-
-        	Document xmlChanges = null;
-
-            AcRunProcessExe run = (AcRunProcessExe)AcRunProcessExe.getInstance(settings, acDefaultWorkFolderParent);
-            //AcRunProcess url = AcRunProcessUrl.getInstance(settings, acDefaultWorkFolderParent);
-            //Document xmlChanges = url.getListOfChangedElements(stream, fromVersion, currentVersion);
-            //NodeList nodes = (NodeList) xPath.evaluate("/AcResponse/Element/Change", xmlChanges, XPathConstants.NODESET);
-            //Loggers.VCS.info("Number of changes: " + nodes.getLength()); // Display the string.
-            //if (nodes.getLength() == 0)
-            //    return result;
-
-            // ----------------------
-            collectStreamChanges(root, depot, stream, result, xmlChanges, fromVersion, currentVersion, run, xPath);
-            // ----------------------
+        	if (mod.getVcsRoot() != root)
+        	{
+        		mod = new ModificationData(mod.getVcsDate(), mod.getChanges(), mod.getDescription(), mod.getUserName(), root, mod.getVersion(), mod.getDisplayVersion());
+        	}
+        	result.add(mod);
+        }
 
+        try
+        {
         	if(settings.getHideChanges())
         	{
         		
@@ -628,79 +698,256 @@ public class AccuRevVcsSupport
     	String stream = settings.getWatchStream();
         String depot = settings.getDepot();
     	
-    	//IAcRunProcess cmd = AcRunProcess.getInstance(settings, acDefaultWorkFolderParent);
-    	AcRunProcess cmd = AcRunProcessUrl.getInstance(settings, acDefaultWorkFolderParent);
+    	AcRunProcessExe cmd = (AcRunProcessExe)AcRunProcessExe.getInstance(settings, acDefaultWorkFolderParent);
     	
-        AcCatProcess catCmd = new AcCatProcess();
-    	catCmd.setSessionToken(cmd.getSessionToken());
+        AcCommandContext catContext = AcCommandContext.create(settings, acDefaultWorkFolderParent);
     	
     	List<XMLTag> changes = cmd.getUpdateStreamInfo(depot, stream, toVer, fromVer);
-	    for (XMLTag change : changes)
-	    {
-	    	String what = change.getAttributeValue("What");
-	    	if (what.equals("version"))
-	    	{
-	    		XMLTag stream2 = change.getTag("Stream2");
-	    		String depotName = settings.getDepot();
-	    		String streamNameVersion = stream2.getAttributeValue("Version");
-	    		String elementName = stream2.getAttributeValue("Name");
-
-	    		byte[] fileContent = catCmd.getFileContentByFilePath(streamNameVersion, elementName, depotName);
-	    		builder.changeOrCreateBinaryFile(new File(elementName), null, new ByteArrayInputStream(fileContent), fileContent.length );
-	    	}
-	    	else if (what.equals("now visible"))
+    	Map<String, Boolean> elementTypes = getChangedElementTypes(cmd, stream, changes);
+
+    	// Fetch the changed files up front, a batch at a time, instead of one 'accurev cat' each.
+    	// The content is fetched on pool threads while the patch is written, in order, here.
+    	File scratchDir = FileUtil.createTempDirectory("accurev", toVer);
+    	PatchContentFetcher fetcher = new PatchContentFetcher(acPatchExecutor,
+    			TeamCityProperties.getInteger("teamcity.accurev.patch.fetchThreads", 4));
+    	Map<String, Future<?>> batches = Collections.emptyMap();
+    	try
+    	{
+	    	batches = startPopulating(settings, toVer, changes, scratchDir);
+	    	for (XMLTag change : changes)
 	    	{
-	    		XMLTag stream2 = change.getTag("Stream2");
-	    		String elementName = stream2.getAttributeValue("Name");
-	    		ElementStatusData elStat = cmd.getElementInfo(depot, stream, elementName);
-	    		if (elStat.isDirectory())
+	    		String what = change.getAttributeValue("What");
+	    		if (what.equals("version") || what.equals("now visible"))
 	    		{
-	    			builder.createDirectory(new File(elementName));
-	    		}
-	    		else
-	    		{
-		    		String depotName = settings.getDepot();
-		    		String streamNameVersion = stream2.getAttributeValue("Version");
-
-		    		byte[] fileContent = catCmd.getFileContentByFilePath(streamNameVersion, elementName, depotName);
-		    		builder.createBinaryFile(new File(elementName), null, new ByteArrayInputStream(fileContent), fileContent.length );
+	    			XMLTag stream2 = change.getTag("Stream2");
+	    			String elementName = stream2.getAttributeValue("Name");
+	    			fetcher.add(createContentFetch(catContext, batches.get(elementName), scratchDir,
+	    					stream2.getAttributeValue("Version"), elementName, elementTypes.get(elementName)));
 	    		}
 	    	}
-	    	else if (what.equals("no longer visible"))
-	    	{
-	    		XMLTag stream2 = change.getTag("Stream2");
-	    		String elementName = stream2.getAttributeValue("Name");
-	    		ElementStatusData elStat = cmd.getElementInfo(depot, stream, elementName);
-	    		if (elStat.isDirectory())
-	    		{
-	    			builder.deleteDirectory(new File(elementName), false);
-	    		}
-	    		else
+
+		    for (XMLTag change : changes)
+		    {
+		    	String what = change.getAttributeValue("What");
+		    	if (what.equals("version"))
+		    	{
+		    		XMLTag stream2 = change.getTag("Stream2");
+		    		String elementName = stream2.getAttributeValue("Name");
+
+		    		File content = fetcher.take();
+		    		if (content != null && !content.isDirectory())
+		    		{
+		    			addFileToPatch(content, elementName, builder, false);
+		    		}
+		    	}
+		    	else if (what.equals("now visible"))
+		    	{
+		    		XMLTag stream2 = change.getTag("Stream2");
+		    		String elementName = stream2.getAttributeValue("Name");
+
+		    		File content = fetcher.take();
+		    		if (content == null || content.isDirectory())
+		    		{
+		    			builder.createDirectory(new File(elementName));
+		    		}
+		    		else
+		    		{
+			    		addFileToPatch(content, elementName, builder, true);
+		    		}
+		    	}
+		    	else if (what.equals("no longer visible"))
+		    	{
+		    		XMLTag stream2 = change.getTag("Stream2");
+		    		String elementName = stream2.getAttributeValue("Name");
+		    		if (isDirectory(cmd, depot, stream, elementTypes, elementName))
+		    		{
+		    			builder.deleteDirectory(new File(elementName), false);
+		    		}
+		    		else
+		    		{
+		    			builder.deleteFile(new File(elementName), false);
+		    		}
+		    	}
+	    		else if (what.equals("moved"))
 	    		{
-	    			builder.deleteFile(new File(elementName), false);
+		    		XMLTag stream1 = change.getTag("Stream1");
+		    		String elementName1 = stream1.getAttributeValue("Name");
+		    		XMLTag stream2 = change.getTag("Stream2");
+		    		String elementName2 = stream2.getAttributeValue("Name");
+		    		if (isDirectory(cmd, depot, stream, elementTypes, elementName2))
+		    		{
+		    			builder.renameDirectory(new File(elementName1), new File(elementName2), false);
+		    		}
+		    		else
+		    		{
+		    			builder.renameFile(new File(elementName1), new File(elementName2), false);
+		    		}
+		    	}
+		    	else
+		    	{
+		    		Loggers.VCS.error("AccuRev: Unknown change type found: " + what);
 	    		}
-	    	}
-    		else if (what.equals("moved"))
+		    }
+    	}
+    	finally
+    	{
+    		fetcher.close();
+    		for (Future<?> batch : new HashSet<Future<?>>(batches.values()))
     		{
-	    		XMLTag stream1 = change.getTag("Stream1");
-	    		String elementName1 = stream1.getAttributeValue("Name");
-	    		XMLTag stream2 = change.getTag("Stream2");
-	    		String elementName2 = stream2.getAttributeValue("Name");
-	    		ElementStatusData elStat = cmd.getElementInfo(depot, stream, elementName2);
-	    		if (elStat.isDirectory())
-	    		{
-	    			builder.renameDirectory(new File(elementName1), new File(elementName2), false);
-	    		}
-	    		else
-	    		{
-	    			builder.renameFile(new File(elementName1), new File(elementName2), false);
-	    		}
-	    	}
-	    	else
-	    	{
-	    		Loggers.VCS.error("AccuRev: Unknown change type found: " + what);
+    			batch.cancel(true);
     		}
-	    }
+    		FileUtil.delete(scratchDir);
+    	}
+    }
+
+    // finds out which of the added, removed and moved elements are directories,
+    // with one 'accurev stat' for all of them
+    private Map<String, Boolean> getChangedElementTypes(AcRunProcessExe cmd, String stream, List<XMLTag> changes)
+    {
+    	Set<String> elements = new LinkedHashSet<String>();
+    	for (XMLTag change : changes)
+    	{
+    		String what = change.getAttributeValue("What");
+    		if (what.equals("now visible") || what.equals("no longer visible") || what.equals("moved"))
+    		{
+    			elements.add(change.getTag("Stream2").getAttributeValue("Name"));
+    		}
+    	}
+
+    	try
+    	{
+    		return cmd.getElementTypes(stream, elements);
+    	}
+    	catch (VcsException ex)
+    	{
+    		Loggers.VCS.warn("Unable to get the type of " + elements.size() + " changed elements: " + ex.getMessage());
+    		return Collections.emptyMap();
+    	}
+    }
+
+    // an element that the batched 'accurev stat' did not report is looked up
+    // on its own; the scratch directory is no help, as the populate batches may
+    // still be running
+    private static boolean isDirectory(AcRunProcessExe cmd, String depot, String stream,
+    		Map<String, Boolean> elementTypes, String elementName) throws VcsException
+    {
+    	Boolean isDirectory = elementTypes.get(elementName);
+    	if (isDirectory != null)
+    		return isDirectory;
+    	ElementStatusData elStat = cmd.getElementInfo(depot, stream, elementName);
+    	return elStat != null && elStat.isDirectory();
+    }
+
+    // populates the files that the incremental patch needs into the scratch
+    // directory, as they are in the stream at the target transaction. The batches
+    // run one after the other on a pool thread; returns the batch of each element.
+    private Map<String, Future<?>> startPopulating(final Settings settings, final String toVer, List<XMLTag> changes,
+    		final File scratchDir)
+    {
+    	Map<String, Future<?>> result = new HashMap<String, Future<?>>();
+    	int batchSize = TeamCityProperties.getInteger("teamcity.accurev.patch.populateBatchSize", 1000);
+    	if (batchSize <= 0)
+    		return result;
+
+    	List<String> elements = new ArrayList<String>();
+    	for (XMLTag change : changes)
+    	{
+    		String what = change.getAttributeValue("What");
+    		if (what.equals("version") || what.equals("now visible"))
+    		{
+    			elements.add(change.getTag("Stream2").getAttributeValue("Name"));
+    		}
+    	}
+
+    	final List<FutureTask<Object>> batches = new ArrayList<FutureTask<Object>>();
+    	for (int i = 0; i < elements.size(); i += batchSize)
+    	{
+    		final List<String> batch = elements.subList(i, Math.min(elements.size(), i + batchSize));
+    		FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+    			public void run()
+    			{
+    				try
+    				{
+    					AcRunProcessExe run = (AcRunProcessExe)AcRunProcessExe.getInstance(settings, acDefaultWorkFolderParent);
+    					run.populateElements(settings.getWatchStream(), toVer, scratchDir.getAbsolutePath(), batch);
+    				}
+    				catch (VcsException ex)
+    				{
+    					// The files that did not make it are fetched one by one
+    					Loggers.VCS.warn("Unable to populate " + batch.size() + " changed elements: " + ex.getMessage());
+    				}
+    			}
+    		}, null);
+    		batches.add(task);
+    		for (String element : batch)
+    		{
+    			result.put(element, task);
+    		}
+    	}
+
+    	if (!batches.isEmpty())
+    	{
+    		acPatchExecutor.execute(new Runnable() {
+    			public void run()
+    			{
+    				for (FutureTask<Object> task : batches)
+    				{
+    					task.run();
+    				}
+    			}
+    		});
+    	}
+    	return result;
+    }
+
+    // fetches the content of a file version into the scratch directory. The batch
+    // populate normally put it there already, otherwise it is cat'ed. Returns null
+    // for a directory that was not populated.
+    private Callable<File> createContentFetch(final AcCommandContext context, @Nullable final Future<?> batch,
+    		final File scratchDir, final String streamNameVersion, final String elementName, @Nullable final Boolean isDirectory)
+    {
+    	return new Callable<File>() {
+    		public File call() throws VcsException, IOException, InterruptedException
+    		{
+    			if (batch != null)
+    			{
+    				try
+    				{
+    					batch.get();
+    				}
+    				catch (ExecutionException ex)
+    				{
+    					/* already logged, cat it instead */
+    				}
+    			}
+
+    			File populated = new File(scratchDir, elementName);
+    			if (populated.exists())
+    				return populated;
+    			if (isDirectory != null && isDirectory)
+    				return null;
+
+    			File tmpFile = File.createTempFile("accurev$", ".tmp", scratchDir);
+    			AcCatProcess.getInstance(context).catFileContent(streamNameVersion, elementName, context.getSettings().getDepot(), tmpFile);
+    			return tmpFile;
+    		}
+    	};
+    }
+
+    // streams the content of a file into the patch; the file is deleted once it
+    // is in the patch, as the patch needs the length up front
+    private void addFileToPatch(File file, String elementName, PatchBuilder builder, boolean created) throws IOException
+    {
+    	final FileInputStream is = new FileInputStream(file);
+    	try {
+    		if (created)
+    			builder.createBinaryFile(new File(elementName), null, is, file.length());
+    		else
+    			builder.changeOrCreateBinaryFile(new File(elementName), null, is, file.length());
+    	} finally {
+    		is.close();
+    		file.delete();
+    	}
     }
 
     // builds patch by exporting files using specified version
@@ -784,21 +1031,42 @@ public class AccuRevVcsSupport
         String version = (contentType == VcsChangeInfo.ContentType.AFTER_CHANGE) 
                        ? change.getAfterChangeRevisionNumber() 
                        : change.getBeforeChangeRevisionNumber();
-        return getContent(change.getRelativeFileName(), vcsRoot, version);
+        Settings settings = createSettings(vcsRoot);
+
+        // The element the path named when the change was collected, if known
+        String elementId = acContentCache.getElement(settings, vcsModification.getDisplayVersion(),
+        		change.getRelativeFileName());
+        return getContent(settings, change.getRelativeFileName(), elementId, version);
     }
 
     @NotNull
     public byte[] getContent(final String filePath, final VcsRoot vcsRoot, final String version)
         throws VcsException
     {
-        Settings settings = createSettings(vcsRoot);
-        AcCatProcess cmd = AcCatProcess.getInstance(settings);
+        return getContent(createSettings(vcsRoot), filePath, null, version);
+    }
 
-        String depotName = settings.getDepot();
-        String streamNameVersion = version;
-        String elementName = filePath;
-        
-        return cmd.getFileContentByFilePath(streamNameVersion, elementName, depotName);
+    private byte[] getContent(final Settings settings, final String filePath, @Nullable final String elementId,
+    		final String version) throws VcsException
+    {
+        if (elementId == null || !ContentCache.isCacheable(version))
+        {
+            return createCatProcess(settings).catFileContent(version, filePath, settings.getDepot());
+        }
+
+        // A fixed version of an element never changes; only a miss goes to the AccuRev server
+        return acContentCache.get(ContentCache.makeKey(settings, elementId, version), new ContentCache.Loader() {
+            public void load(@NotNull OutputStream out) throws VcsException
+            {
+                createCatProcess(settings).catElementContent(version, elementId, settings.getDepot(), out);
+            }
+        });
+    }
+
+    private AcCatProcess createCatProcess(Settings settings) throws VcsException
+    {
+        return AcCatProcess.getInstance(AcCommandContext.create(settings, acDefaultWorkFolderParent)
+        	.withPriority(ProcessGovernor.Priority.INTERACTIVE));
     }
 
     public VcsChange createChangeItem(XPath xPath, Element acChangeNode, String virtualVersion)
@@ -847,133 +1115,226 @@ public class AccuRevVcsSupport
         return change;
     }
 
-    public void collectStreamChanges(VcsRoot root, String depot, String watchStream, 
-    		List<ModificationData> result, Document xmlChanges, 
-    		String fromVersion, String currentVersion, 
-    		AcRunProcessExe run, XPath xPath)
+    private List<ModificationData> collectStreamModifications(VcsRoot root, Settings settings,
+    		String fromVersion, String currentVersion)
+        throws VcsException
+    {
+        String depot = settings.getDepot();
+        String stream = settings.getWatchStream();
+        List<ModificationData> result = new ArrayList<ModificationData>();
+        try
+        {
+            XPathFactory factory = XPathFactory.newInstance();
+            XPath xPath = factory.newXPath();
+
+        	Document xmlChanges = null;
+
+            AcRunProcessExe run = (AcRunProcessExe)AcRunProcessExe.getInstance(settings, acDefaultWorkFolderParent);
+            run.setAncestorCache(acAncestorCache);
+            // Reload the stream hierarchy if anything happened in the depot since it was last loaded
+            run.getStreamTopology(depot, currentVersion);
+            //AcRunProcess url = AcRunProcessUrl.getInstance(settings, acDefaultWorkFolderParent);
+            //Document xmlChanges = url.getListOfChangedElements(stream, fromVersion, currentVersion);
+            //NodeList nodes = (NodeList) xPath.evaluate("/AcResponse/Element/Change", xmlChanges, XPathConstants.NODESET);
+            //Loggers.VCS.info("Number of changes: " + nodes.getLength()); // Display the string.
+            //if (nodes.getLength() == 0)
+            //    return result;
+
+            try
+            {
+            	collectStreamChanges(root, depot, stream, result, xmlChanges, fromVersion, currentVersion, run, xPath);
+            }
+            finally
+            {
+            	acAncestorCache.flush();
+            	acContentCache.flush();
+            }
+
+            // Get the diffs of the new changes ready before anyone asks for them
+            if (acContentPrefetcher != null)
+            {
+            	acContentPrefetcher.prefetch(settings, result);
+            }
+        }
+        catch (VcsException ex)
+        {
+        	throw ex;
+        }
+        catch (Exception ex)
+        {
+            throw new VcsException("Collect build changes error: " + ex.getMessage(), ex);
+        }
+        return result;
+    }
+
+    public void collectStreamChanges(final VcsRoot root, String depot, final String watchStream, 
+    		final List<ModificationData> result, Document xmlChanges, 
+    		final String fromVersion, final String currentVersion, 
+    		final AcRunProcessExe run, XPath xPath)
         throws VcsException, XPathExpressionException
     {
-    	Loggers.VCS.info("[XX] collectStreamChanges:  stream '" + watchStream + "', from " + fromVersion + ", to " + currentVersion);
+    	// The watch stream followed by all the streams it inherits from
+    	final StreamTopology topology = run.getStreamTopology(depot, currentVersion);
+    	List<String> streams = topology.getAncestry(watchStream);
+    	if (streams.isEmpty())
+    	{
+    		streams = Collections.singletonList(watchStream);
+    	}
+    	Loggers.VCS.info("[XX] collectStreamChanges:  streams " + streams + ", from " + fromVersion + ", to " + currentVersion);
+
+    	// Element versions already reported, by transaction and element id. A
+    	// transaction seen in several streams is only reported once per element.
+    	final Set<String> reported = new HashSet<String>();
+    	HistoryWindowReader reader = new HistoryWindowReader(acHistoryExecutor, acHistoryPermits, acHistoryThreads, acHistoryWindow);
+    	reader.read(run, depot, streams, Long.parseLong(fromVersion), Long.parseLong(currentVersion), new HistoryWindowReader.Visitor() {
+    		public void checkCancelled() throws VcsException
+    		{
+    			AccuRevVcsSupport.this.checkCancelled(watchStream);
+    		}
 
-        //Vector<TransactionData> vec = run.getRevisionsBetween(depot, watchStream, fromVersion, currentVersion);
-    	// else
-        AcRunProcessExe.AcHistoryParser hist = run.getHistoryBetween(depot, watchStream, fromVersion, currentVersion);    	
-        @SuppressWarnings("unchecked")
-        Vector<TransactionData> vec = hist.getHistoryDataCollection();
-        
-        Loggers.VCS.info("[XX] Number of transactions on '" + watchStream + "': " + vec.size());
-        
-        for (TransactionData tx : vec)
+    		public void transaction(@NotNull ChainHistoryReader.Entry entry) throws VcsException
+    		{
+    			if (entry.tx.getTranId().equals(fromVersion))
+    				return;
+
+    			ModificationData mod = createModificationData(root, entry.stream, entry.tx, topology, currentVersion, run, reported);
+    			if (mod != null)
+    			{
+    				result.add(mod);
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * Stops collecting changes when the thread is interrupted or the server stops.
+     */
+    private void checkCancelled(String stream) throws VcsException
+    {
+    	if (acShuttingDown || Thread.currentThread().isInterrupted())
+    	{
+    		throw new VcsException("Collecting changes of stream " + stream + " was cancelled");
+    	}
+    }
+
+    private ModificationData createModificationData(VcsRoot root, String watchStream, TransactionData tx,
+    		StreamTopology topology, String currentVersion, AcRunProcessExe run, Set<String> reported)
+        throws VcsException
+    {
+        List<VcsChange> changes = new ArrayList<VcsChange>(); // Transaction: version tags
+
+        // Drop the versions that were already reported from another stream
+        List<VersionData> versions = new ArrayList<VersionData>();
+        for (Object obj : tx.getVersions())
+        {
+        	VersionData version = (VersionData)obj;
+        	if (!reported.contains(tx.getTranId() + "/" + version.getVerEID()))
+        		versions.add(version);
+        }
+        if (versions.isEmpty())
         {
-            if (tx.getTranId().equals(fromVersion))
-                continue;
+        	Loggers.VCS.debug("Transaction " + tx.getTranId() + " on '" + watchStream + "' was already reported");
+        	return null;
+        }
 
-            List<VcsChange> changes = new ArrayList<VcsChange>(); // Transaction: version tags
-            @SuppressWarnings("unchecked")
-			Vector<VersionData> versions = tx.getVersions();
+        // Resolve the ancestors of all the versions in the transaction in one go
+        Map<String, String> predecessors = run.resolvePredecessors(watchStream, tx.getTranId(), versions);
 
-            for (VersionData version : versions)
-            {
-                String fullRealNum = version.getRealStreamNum() + "/" + version.getRealVersionNum();
-                //Loggers.VCS.debug("ElementID: " + version.getVerEID() + ", Real version num:" +  fullRealNum);
+        for (VersionData version : versions)
+        {
+            String fullRealNum = version.getRealStreamNum() + "/" + version.getRealVersionNum();
+            //Loggers.VCS.debug("ElementID: " + version.getVerEID() + ", Real version num:" +  fullRealNum);
 
-                //String expression = "/AcResponse/Element/Change[*/@eid='" + version.getVerEID() + "' and @What!='eid']";
-                //NodeList nodeList = (NodeList)xPath.evaluate(expression, xmlChanges, XPathConstants.NODESET);  
+            //String expression = "/AcResponse/Element/Change[*/@eid='" + version.getVerEID() + "' and @What!='eid']";
+            //NodeList nodeList = (NodeList)xPath.evaluate(expression, xmlChanges, XPathConstants.NODESET);  
 /*                
-                for ( int i = 0; i < nodeList.getLength(); ++i )
-                {
-                	Element node = ( Element )nodeList.item( i );
-                                	
-                	if (node == null) {
-                		Loggers.VCS.info("[XX] node is null");
-                		continue;
-                	}
-                	
-                	Loggers.VCS.info("[XX] found a node, " + version.getVerVirtualName());
-                	
-                    Element oldVer = (Element) xPath.evaluate("Stream1", node, XPathConstants.NODE);
-                    Element newVer = (Element) xPath.evaluate("Stream2", node, XPathConstants.NODE);
-
-                    String verFullPath = (String) ((newVer != null) ? newVer : oldVer).getAttribute("Name");                	
-                	
-                    if ( verFullPath.length( ) > 0 )
-                    {      
-                    	node.setAttribute("VcsStatus", "Matched");
-                        changes.add(createChangeItem(xPath, node, version.getVerVirtualName()));
-                    
-                    	break;
-                    }
+            for ( int i = 0; i < nodeList.getLength(); ++i )
+            {
+            	Element node = ( Element )nodeList.item( i );
+                            	
+            	if (node == null) {
+            		Loggers.VCS.info("[XX] node is null");
+            		continue;
+            	}
+            	
+            	Loggers.VCS.info("[XX] found a node, " + version.getVerVirtualName());
+            	
+                Element oldVer = (Element) xPath.evaluate("Stream1", node, XPathConstants.NODE);
+                Element newVer = (Element) xPath.evaluate("Stream2", node, XPathConstants.NODE);
+
+                String verFullPath = (String) ((newVer != null) ? newVer : oldVer).getAttribute("Name");                	
+            	
+                if ( verFullPath.length( ) > 0 )
+                {      
+                	node.setAttribute("VcsStatus", "Matched");
+                    changes.add(createChangeItem(xPath, node, version.getVerVirtualName()));
+                
+                	break;
                 }
+            }
   */
 
-                String ancVer = run.getDirectAncestor(watchStream, version.getVerFullPath());
-                if (ancVer == null) {
-                	// file not found condition, thus the file is filtered out.
-                	continue;
-                }
+            String versionKey = AcRunProcessExe.getElementVersionKey(version.getVerEID(), version.getVerVirtual());
+            if (!predecessors.containsKey(versionKey)) {
+            	// file not found condition, thus the file is filtered out.
+            	continue;
+            }
 
-                String verVirtualNamed = StreamData.convertStreamVersion(version.getVerVirtual(), hist.getStreamCollection());
-                String verRealNamed = StreamData.convertStreamVersion(version.getVerReal(), hist.getStreamCollection());
+            String verVirtualNamed = convertStreamVersion(version.getVerVirtual(), topology);
+            String verRealNamed = convertStreamVersion(version.getVerReal(), topology);
 
-                Loggers.VCS.info("|ElementID: "+ version.getVerEID()); 
-                Loggers.VCS.info("|  Virtual: "+ version.getVerVirtual() +" \t'"+ verVirtualNamed +"'");
-                Loggers.VCS.info("|     Real: "+ version.getVerReal() +" \t'"+ verRealNamed +"'");
-                Loggers.VCS.info("|    IsDir: "+ version.getVerIsDir());
-                Loggers.VCS.info("|     Path: "+ version.getVerFullPath());
-                
-                Boolean isDir = version.getVerIsDir();
-                String filePath = version.getVerFullPath().substring(1); // strip the /./ from the beginning
-                String fileName = filePath;
-                String relativeFileName = filePath;
-                String afterNum = version.getVerVirtual();
-                
-                String beforeNum = null;//version.getVerAncestor();
-                if (beforeNum == null)
-                	beforeNum = run.getPredecessorBeforeTransaction(verVirtualNamed, version.getVerFullPath());
-                if (beforeNum != null && beforeNum.equals("0/0"))
-                	beforeNum = null;
+            Loggers.VCS.info("|ElementID: "+ version.getVerEID()); 
+            Loggers.VCS.info("|  Virtual: "+ version.getVerVirtual() +" \t'"+ verVirtualNamed +"'");
+            Loggers.VCS.info("|     Real: "+ version.getVerReal() +" \t'"+ verRealNamed +"'");
+            Loggers.VCS.info("|    IsDir: "+ version.getVerIsDir());
+            Loggers.VCS.info("|     Path: "+ version.getVerFullPath());
+            
+            Boolean isDir = version.getVerIsDir();
+            String filePath = version.getVerFullPath().substring(1); // strip the /./ from the beginning
+            String fileName = filePath;
+            String relativeFileName = filePath;
+            String afterNum = version.getVerVirtual();
+            
+            String beforeNum = predecessors.get(versionKey);
+            if (beforeNum != null && beforeNum.equals("0/0"))
+            	beforeNum = null;
 
-                VcsChangeInfo.Type changeType = isDir ? VcsChangeInfo.Type.DIRECTORY_CHANGED : VcsChangeInfo.Type.CHANGED;
-                
-                Loggers.VCS.info("| Ancestor: "+ beforeNum);
-                
-                Loggers.VCS.info("VcsChange: changeType="+changeType.toString()+" fileName="+fileName+" beforeNum="+(beforeNum != null ? beforeNum : "(null)")+" afterNum="+(afterNum != null ? afterNum : "(null)")+" isDir="+isDir);
-                
-                VcsChange change = new VcsChange(changeType, fileName, relativeFileName, beforeNum, afterNum);
-                changes.add(change);
-            }
+            VcsChangeInfo.Type changeType = isDir ? VcsChangeInfo.Type.DIRECTORY_CHANGED : VcsChangeInfo.Type.CHANGED;
             
-            if (changes.size() > 0)
-            {
-                Date changeDate = new Date(Long.parseLong(tx.getTranTime()) * 1000L); // Transaction: time
-                String description = tx.getComment();
-                String user = tx.getTranUser();
-                String txVersion = currentVersion;  // DCN 05APR2011 We use the depot-wide high watermark to ensure that the workspace is populated to the same Transaction number as the Collect changes
-                String displayVersion = tx.getTranId();
-                
-                Loggers.VCS.info("Modification: changeDate="+changeDate+" user="+user+" txVersion="+txVersion+" displayVersion="+displayVersion+" description='"+description+"'");
-                
-                ModificationData mod = new ModificationData(changeDate, changes, description, user, root, txVersion, displayVersion);
-                result.add(mod);
-            }
+            Loggers.VCS.info("| Ancestor: "+ beforeNum);
+            
+            Loggers.VCS.info("VcsChange: changeType="+changeType.toString()+" fileName="+fileName+" beforeNum="+(beforeNum != null ? beforeNum : "(null)")+" afterNum="+(afterNum != null ? afterNum : "(null)")+" isDir="+isDir);
+            
+            VcsChange change = new VcsChange(changeType, fileName, relativeFileName, beforeNum, afterNum);
+            changes.add(change);
+            // Remember the element, to look its content up by id (see getContent)
+            acContentCache.putElement(run.getContext().getSettings(), tx.getTranId(), relativeFileName,
+            		version.getVerEID());
+            reported.add(tx.getTranId() + "/" + version.getVerEID());
         }
         
-        //NodeList inheritedVersionNodes = (NodeList) xPath.evaluate("/AcResponse/Element/Change[not(@VcsStatus) or @VcsStatus != 'Matched']", xmlChanges, XPathConstants.NODESET);
-        //Loggers.VCS.info("Number of changes left: " + inheritedVersionNodes.getLength()); // Display the string.
-       
-        //if (inheritedVersionNodes.getLength() != 0)
+        if (changes.size() > 0)
         {
-            String parentStream = run.getParentStreamName(depot, watchStream);
+            Date changeDate = new Date(Long.parseLong(tx.getTranTime()) * 1000L); // Transaction: time
+            String description = tx.getComment();
+            String user = tx.getTranUser();
+            String txVersion = currentVersion;  // DCN 05APR2011 We use the depot-wide high watermark to ensure that the workspace is populated to the same Transaction number as the Collect changes
+            String displayVersion = tx.getTranId();
             
-            Loggers.VCS.info("Parent stream: '" + parentStream + "'");
-            if (parentStream != null)
-            {
-            	parentStream = parentStream.trim();
-            	if (parentStream.length() > 0)
-            	{
-            		collectStreamChanges(root, depot, parentStream, result, xmlChanges, fromVersion, currentVersion, run, xPath);
-            	}
-            }
+            Loggers.VCS.info("Modification: changeDate="+changeDate+" user="+user+" txVersion="+txVersion+" displayVersion="+displayVersion+" description='"+description+"'");
+            
+            return new ModificationData(changeDate, changes, description, user, root, txVersion, displayVersion);
         }
+        return null;
+    }
+
+    /**
+     * Translates "streamNumber/version" into "streamName/version".
+     */
+    private static String convertStreamVersion(String version, StreamTopology topology)
+    {
+    	int slash = (version != null) ? version.indexOf('/') : -1;
+    	String name = (slash > 0) ? topology.getStreamName(version.substring(0, slash)) : null;
+    	return (name != null) ? name + version.substring(slash) : version;
     }
 }
@@ -99,11 +99,9 @@ public class AccurevPromoter extends BuildServerAdapter
 		 * Translist returns only those transactions which have not yet been promoted.
 		 * We need it to find lowest transaction remaining.
 		 */
-    	GenericXMLParser translistParsar 	= cmd.getTranslist(streamName /*, runningBuild*/);
-    	XMLTag translistRootElement 		= (XMLTag) translistParsar.getTagList().get(0);
-    	List<XMLTag> pendingTransactions 	= translistRootElement.getTags();
+    	List<String> pendingTransactions 	= cmd.getTranslist(streamName /*, runningBuild*/);
     	
-    	if(pendingTransactions != null && pendingTransactions.size() == 0)//TODO: check what happens if transactions == 0
+    	if(pendingTransactions.size() == 0)//TODO: check what happens if transactions == 0
     	{
     		printBuildMessage("WARNING:accurev TransList returned no transactions. No promotes can be made",runningBuild);
     		return false;//no more transactions in this stream.
@@ -112,16 +110,9 @@ public class AccurevPromoter extends BuildServerAdapter
     	//############################################################################################################	
     	int transactionCount  = 0;
     	Integer lowestTrans   = Integer.MAX_VALUE;
-    	for(XMLTag transactionTag: pendingTransactions)
+    	for(String transActionID: pendingTransactions)
     	{
-        	String tagName = transactionTag.getName();
-        	if(tagName != "transaction")
-        	{
-        		continue;
-        	}
-        	
         	transactionCount++;
-        	String transActionID = transactionTag.getAttributeValue("id");
         	Integer ID 			 = new Integer(transActionID);
         	
         	if(ID < lowestTrans)
@@ -284,18 +275,16 @@ public class AccurevPromoter extends BuildServerAdapter
 	
 	
 	
-	public String getTransactionsToPromoteXML(List<XMLTag> pendingTransactions, int maxTransactionID ) throws VcsException
+	public String getTransactionsToPromoteXML(List<String> pendingTransactions, int maxTransactionID ) throws VcsException
 	{
      
         String outputText = "<transactions>\n";
-        for(XMLTag tag :pendingTransactions)
+        for(String id :pendingTransactions)
         {
-        	String elementName 		= tag.getName();
-        	String id 				= tag.getAttributeValue("id");        	
         	Integer transactionId 	= new Integer(id);
         	
         	
-        	if(elementName.equals("transaction") && transactionId <= maxTransactionID)
+        	if(transactionId <= maxTransactionID)
         	{
         		outputText += "\t<id>" + id + "</id>\n";
         	}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcRunProcessExe;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.HistoryConsumer;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.ProcessGovernor;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.accurev.common.data.TransactionData;
+
+/**
+ * Reads the history of a stream and of all the streams it inherits from at the
+ * same time, and merges them newest first (like 'accurev hist' reports them).
+ * A transaction seen in several streams comes first from the stream closest to
+ * the watch stream.
+ *
+ * Each stream is read by its own 'accurev hist' on a pool thread, which hands
+ * the transactions over through a small queue, so only a few transactions per
+ * stream are held in memory at any time.
+ *
+ * The process slots of the AccuRev server are taken for the whole chain at once,
+ * plus one for the commands the merging thread runs in between; taking them one
+ * by one could leave readers holding slots while waiting for a reader that
+ * can't get one.
+ *
+ * A chain with more streams than the history permits or the process slots allow
+ * is read one stream at a time instead, each window being small enough to be
+ * held in memory, so that the limits are never exceeded.
+ *
+ * @author Francois Retief
+ */
+class ChainHistoryReader
+{
+	/** Transactions a stream reader may run ahead of the merge. */
+	private static final int QUEUE_SIZE = 8;
+
+	private static final Object END = new Object();
+
+	public static class Entry
+	{
+		final String stream;
+		final int depth;
+		final TransactionData tx;
+
+		Entry(String stream, int depth, TransactionData tx)
+		{
+			this.stream = stream;
+			this.depth = depth;
+			this.tx = tx;
+		}
+	}
+
+	private static class Source
+	{
+		final String stream;
+		final int depth;
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+		Future<Integer> future;
+		LinkedList<TransactionData> buffered;
+		TransactionData head;
+		long headId;
+		boolean done;
+
+		Source(String stream, int depth)
+		{
+			this.stream = stream;
+			this.depth = depth;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxPermits;
+	private final List<Source> sources = new ArrayList<Source>();
+	private int acquired;
+	private ProcessGovernor.Permit slots;
+	private boolean started;
+	private boolean primed;
+
+	/**
+	 * @param permits    bounds the number of 'accurev hist' running at once; a chain
+	 *                   takes one per stream, or a single one when it has more
+	 *                   streams than there are permits
+	 * @param maxPermits the number of permits the semaphore was created with
+	 */
+	public ChainHistoryReader(@NotNull ExecutorService executor, @NotNull Semaphore permits, int maxPermits,
+			@NotNull List<String> streams)
+	{
+		this.executor = executor;
+		this.permits = permits;
+		this.maxPermits = maxPermits;
+		for (int i = 0; i < streams.size(); ++i)
+		{
+			sources.add(new Source(streams.get(i), i));
+		}
+	}
+
+	/**
+	 * Starts reading the history of all the streams between the two transactions.
+	 *
+	 * @param wait whether to wait for permits to be available; if not, nothing is
+	 *             started when there are not enough of them
+	 * @return whether the reading was started
+	 */
+	public boolean start(@NotNull AcRunProcessExe run, final String depot, final String fromVersion, final String toVersion,
+			boolean wait) throws VcsException
+	{
+		// All the streams of the chain have to run together for the merge to make
+		// progress, so take the permits for all of them at once. If there are not
+		// that many, read the streams one by one.
+		boolean sequential = sources.size() > maxPermits
+			|| sources.size() + 1 > run.getContext().getGovernor().getMaxProcesses();
+		if (sequential && !wait)
+			return false;
+
+		int wanted = sequential ? 1 : sources.size();
+		if (wait)
+		{
+			try
+			{
+				permits.acquire(wanted);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new VcsException("Interrupted while waiting to read the history of " + sources.get(0).stream, ex);
+			}
+		}
+		else if (!permits.tryAcquire(wanted))
+		{
+			return false;
+		}
+		acquired = wanted;
+
+		try
+		{
+			slots = run.getContext().acquireProcesses(wanted + 1, wait);
+		}
+		catch (VcsException ex)
+		{
+			close();
+			throw ex;
+		}
+		if (slots == null)
+		{
+			close();
+			return false;
+		}
+
+		started = true;
+		if (sequential)
+		{
+			Loggers.VCS.debug("Reading the history of " + sources.size() + " streams one at a time");
+			readSequentially(run, depot, fromVersion, toVersion);
+			return true;
+		}
+
+		for (final Source source : sources)
+		{
+			final AcRunProcessExe streamRun = new AcRunProcessExe(run);
+			streamRun.setReservation(slots);
+			source.future = executor.submit(new Callable<Integer>() {
+				public Integer call() throws VcsException
+				{
+					try
+					{
+						return readHistory(streamRun, depot, source.stream, fromVersion, toVersion, new HistoryConsumer() {
+							public void transaction(@NotNull TransactionData tx) throws VcsException
+							{
+								try
+								{
+									source.queue.put(tx);
+								}
+								catch (InterruptedException ex)
+								{
+									throw new VcsException("Interrupted while reading the history of " + source.stream, ex);
+								}
+							}
+						});
+					}
+					finally
+					{
+						try
+						{
+							source.queue.put(END);
+						}
+						catch (InterruptedException ex)
+						{
+							/* the reader was closed, nobody is waiting for the end */
+						}
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	private void readSequentially(AcRunProcessExe run, String depot, String fromVersion, String toVersion) throws VcsException
+	{
+		AcRunProcessExe streamRun = new AcRunProcessExe(run);
+		streamRun.setReservation(slots);
+		for (final Source source : sources)
+		{
+			source.buffered = new LinkedList<TransactionData>();
+			readHistory(streamRun, depot, source.stream, fromVersion, toVersion, new HistoryConsumer() {
+				public void transaction(@NotNull TransactionData tx)
+				{
+					source.buffered.add(tx);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads the history of one stream of the chain.
+	 *
+	 * @param streamRun runs in the process slots taken for the chain
+	 * @return the number of transactions read
+	 */
+	int readHistory(@NotNull AcRunProcessExe streamRun, String depot, String stream, String fromVersion, String toVersion,
+			@NotNull HistoryConsumer consumer) throws VcsException
+	{
+		return streamRun.readHistoryBetween(depot, stream, fromVersion, toVersion, consumer);
+	}
+
+	/**
+	 * The process slots taken for the chain; the merging thread runs its own
+	 * commands in them while the reader is open.
+	 */
+	@Nullable
+	public ProcessGovernor.Permit getReservation()
+	{
+		return slots;
+	}
+
+	/**
+	 * Returns the next transaction, or null once all the streams are exhausted.
+	 */
+	@Nullable
+	public Entry next() throws VcsException
+	{
+		if (!primed)
+		{
+			for (Source source : sources)
+			{
+				advance(source);
+			}
+			primed = true;
+		}
+
+		Source next = null;
+		for (Source source : sources)
+		{
+			if (source.done)
+				continue;
+			if (next == null || source.headId > next.headId)
+				next = source; // ties keep the stream closest to the watch stream
+		}
+		if (next == null)
+			return null;
+
+		Entry entry = new Entry(next.stream, next.depth, next.head);
+		advance(next);
+		return entry;
+	}
+
+	/**
+	 * Stops the stream readers that are still running and gives back the permits.
+	 */
+	public void close()
+	{
+		if (started)
+		{
+			for (Source source : sources)
+			{
+				if (source.future != null)
+					source.future.cancel(true);
+			}
+		}
+		permits.release(acquired);
+		acquired = 0;
+		if (slots != null)
+		{
+			slots.release();
+			slots = null;
+		}
+	}
+
+	private void advance(Source source) throws VcsException
+	{
+		if (source.buffered != null)
+		{
+			source.head = source.buffered.poll();
+			source.done = (source.head == null);
+			if (!source.done)
+				source.headId = Long.parseLong(source.head.getTranId());
+			return;
+		}
+
+		try
+		{
+			Object item = source.queue.take();
+			if (item != END)
+			{
+				source.head = (TransactionData)item;
+				source.headId = Long.parseLong(source.head.getTranId());
+				return;
+			}
+
+			source.head = null;
+			source.done = true;
+			int count = source.future.get();
+			Loggers.VCS.info("[XX] Number of transactions on '" + source.stream + "': " + count);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new VcsException("Interrupted while reading the history of " + source.stream, ex);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof VcsException)
+				throw (VcsException)cause;
+			throw new VcsException("Unable to read the history of " + source.stream + ": " + cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Shares the changes collected for a stream between the roots (and repeated
+ * requests) that ask for the same range at about the same time.
+ *
+ * Requests for a range that is being collected wait for that collection instead
+ * of starting their own, and the last few results are kept for requests that
+ * come in later. The modifications are bound to the root that collected them;
+ * callers have to re-bind them to their own root.
+ *
+ * @author Francois Retief
+ */
+public class ChangesCache
+{
+	public interface Collector
+	{
+		@NotNull
+		List<ModificationData> collect() throws VcsException;
+	}
+
+	private final Map<String, FutureTask<List<ModificationData>>> running = new HashMap<String, FutureTask<List<ModificationData>>>();
+	private final LinkedHashMap<String, List<ModificationData>> results;
+
+	public ChangesCache(final int maxEntries)
+	{
+		results = new LinkedHashMap<String, List<ModificationData>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, List<ModificationData>> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public static String makeKey(@NotNull Settings settings, @NotNull String fromVersion, @NotNull String toVersion)
+	{
+		return settings.getServerName() + ":" + settings.getServerPort() + "|" + settings.getUsername()
+			+ "|" + settings.getDepot() + "|" + settings.getWatchStream() + "|" + fromVersion + "|" + toVersion;
+	}
+
+	/**
+	 * Returns the changes for the key, running the collector only if nobody else
+	 * is collecting or recently collected them.
+	 */
+	@NotNull
+	public List<ModificationData> get(@NotNull String key, @NotNull final Collector collector) throws VcsException
+	{
+		FutureTask<List<ModificationData>> task;
+		boolean owner = false;
+		synchronized (this)
+		{
+			List<ModificationData> result = results.get(key);
+			if (result != null)
+			{
+				Loggers.VCS.debug("Reusing collected changes for " + key);
+				return result;
+			}
+
+			task = running.get(key);
+			if (task == null)
+			{
+				task = new FutureTask<List<ModificationData>>(new Callable<List<ModificationData>>() {
+					public List<ModificationData> call() throws VcsException
+					{
+						return Collections.unmodifiableList(collector.collect());
+					}
+				});
+				running.put(key, task);
+				owner = true;
+			}
+			else
+			{
+				Loggers.VCS.debug("Waiting for the changes being collected for " + key);
+			}
+		}
+
+		if (owner)
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					running.remove(key);
+					if (!task.isCancelled())
+					{
+						try
+						{
+							results.put(key, task.get());
+						}
+						catch (Exception ex)
+						{
+							/* failures are not kept */
+						}
+					}
+				}
+			}
+		}
+
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new VcsException("Interrupted while waiting for the changes of " + key, ex);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof VcsException)
+				throw (VcsException)cause;
+			throw new VcsException("Collect build changes error: " + cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.Journal;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persistent cache of file content, for getContent.
+ *
+ * A version of an element ("stream/123") never changes, so its content can be
+ * kept for good. The content is stored once per SHA-1 hash, in blob files, and
+ * an index maps (server, depot, element id, version) to the hash; roots on the
+ * same depot share the entries. Entries are keyed by element id rather than by
+ * path, as a path can name another element once the first one is defunct.
+ * Blobs are evicted in LRU order once they take more than the configured size.
+ * The index is a {@link Journal}, like the one of the ancestor cache, and is
+ * rewritten once it holds too many stale records.
+ *
+ * The cache also keeps which element a path changed by a transaction was, as
+ * getContent is only given the path. It is kept apart from the index, in its
+ * own journal, and bounded by the same number of entries.
+ *
+ * @author Francois Retief
+ */
+public class ContentCache
+{
+	private static final int MAGIC = 0x41434343; // "ACCC"
+	private static final int FORMAT_VERSION = 2; // 2: keyed by element id
+	private static final int ELEMENTS_MAGIC = 0x41434345; // "ACCE"
+	private static final int ELEMENTS_FORMAT_VERSION = 1;
+
+	/** Writes the content of a version to the stream. */
+	public interface Loader
+	{
+		void load(@NotNull OutputStream out) throws VcsException;
+	}
+
+	private final File blobDir;
+	private final File tmpDir;
+	private final long maxBytes;
+	private final int maxEntries;
+
+	/** Key to content hash, in LRU order. */
+	private final LinkedHashMap<String, String> index;
+	/** Content hash to blob size, in LRU order. */
+	private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+	/** Blobs being read, by hash, with the number of readers; not evicted. */
+	private final Map<String, Integer> pinned = new HashMap<String, Integer>();
+	private long totalBytes;
+	private final Map<String, FutureTask<String>> loading = new HashMap<String, FutureTask<String>>();
+	/** Transaction and path to element id, in LRU order. */
+	private final LinkedHashMap<String, String> elements;
+
+	private final Journal journal;
+	private final Journal elementJournal;
+
+	public ContentCache(@NotNull File cacheDir, long maxBytes, final int maxEntries)
+	{
+		this.blobDir = new File(cacheDir, "blobs");
+		this.tmpDir = new File(cacheDir, "tmp");
+		this.maxBytes = maxBytes;
+		this.maxEntries = maxEntries;
+		this.index = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+		this.elements = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+		this.journal = new Journal(new File(cacheDir, "index.bin"), MAGIC, FORMAT_VERSION, "content cache index");
+		this.elementJournal = new Journal(new File(cacheDir, "elements.bin"), ELEMENTS_MAGIC, ELEMENTS_FORMAT_VERSION,
+				"content cache elements");
+
+		if (!blobDir.isDirectory() && !blobDir.mkdirs())
+		{
+			Loggers.VCS.warn("Unable to create content cache directory " + blobDir.getAbsolutePath());
+		}
+		tmpDir.mkdirs();
+		File[] leftovers = tmpDir.listFiles();
+		if (leftovers != null)
+		{
+			for (File file : leftovers)
+			{
+				file.delete();
+			}
+		}
+		loadBlobs();
+		loadIndex();
+		loadElements();
+	}
+
+	/**
+	 * Builds a cache key. The depot of a server is the namespace, so that all
+	 * the roots on it share the entries.
+	 */
+	@NotNull
+	public static String makeKey(@NotNull Settings settings, @NotNull String elementId, @NotNull String version)
+	{
+		return getNamespace(settings) + '|' + elementId + '|' + version;
+	}
+
+	private static String makeElementKey(Settings settings, String tranId, String path)
+	{
+		return getNamespace(settings) + '|' + tranId + '|' + path;
+	}
+
+	private static String getNamespace(Settings settings)
+	{
+		return settings.getServerName() + ":" + settings.getServerPort() + "/" + settings.getDepot();
+	}
+
+	/**
+	 * Only a fixed version (e.g. "stream/12") can be cached; the content of
+	 * whatever is currently in a stream moves along with the stream.
+	 */
+	public static boolean isCacheable(@NotNull String version)
+	{
+		int slash = version.lastIndexOf('/');
+		if (slash < 1 || slash == version.length() - 1)
+			return false;
+		for (int i = slash + 1; i < version.length(); ++i)
+		{
+			if (!Character.isDigit(version.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the element that a path changed by a transaction was. A path
+	 * names one element at the time of a transaction, so that never changes.
+	 */
+	public synchronized void putElement(@NotNull Settings settings, @NotNull String tranId, @NotNull String path,
+			@NotNull String elementId)
+	{
+		String key = makeElementKey(settings, tranId, path);
+		if (elementId.equals(elements.put(key, elementId)))
+			return; /* nothing new to persist */
+
+		elementJournal.append(key, elementId);
+		if (elementJournal.getRecords() > 2 * maxEntries)
+		{
+			elementJournal.compact(elements);
+		}
+	}
+
+	/**
+	 * Returns the element that a path changed by a transaction was, or null if
+	 * it is not known.
+	 */
+	@Nullable
+	public synchronized String getElement(@NotNull Settings settings, @NotNull String tranId, @NotNull String path)
+	{
+		return elements.get(makeElementKey(settings, tranId, path));
+	}
+
+	public synchronized boolean contains(@NotNull String key)
+	{
+		String hash = index.get(key);
+		return hash != null && blobs.containsKey(hash);
+	}
+
+	/**
+	 * Returns the content for the key, loading it once if it is not in the cache.
+	 * Requests for content that is being loaded wait for that load.
+	 */
+	@NotNull
+	public byte[] get(@NotNull String key, @NotNull Loader loader) throws VcsException
+	{
+		// The blob is pinned while it is read. It can still be evicted between the
+		// load and the pin, by another load; then it is loaded again, and in the
+		// end without the cache.
+		String hash = load(key, loader);
+		for (int attempt = 1; !pin(hash); ++attempt)
+		{
+			if (attempt == 2)
+			{
+				Loggers.VCS.debug("Content of " + key + " was evicted before it could be read, loading it uncached");
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				loader.load(content);
+				return content.toByteArray();
+			}
+			hash = load(key, loader);
+		}
+
+		try
+		{
+			return readBlob(hash);
+		}
+		catch (IOException ex)
+		{
+			throw new VcsException("Unable to read cached content of " + key + ": " + ex.getMessage(), ex);
+		}
+		finally
+		{
+			unpin(hash);
+		}
+	}
+
+	/**
+	 * Makes sure the content for the key is in the cache.
+	 */
+	public void prefetch(@NotNull String key, @NotNull Loader loader) throws VcsException
+	{
+		load(key, loader);
+	}
+
+	/**
+	 * Writes out the elements remembered so far.
+	 */
+	public synchronized void flush()
+	{
+		elementJournal.flush();
+	}
+
+	public synchronized void close()
+	{
+		journal.close();
+		elementJournal.close();
+	}
+
+	private String load(final String key, final Loader loader) throws VcsException
+	{
+		FutureTask<String> task;
+		boolean owner = false;
+		synchronized (this)
+		{
+			String hash = index.get(key);
+			if (hash != null)
+			{
+				if (blobs.containsKey(hash))
+					return hash;
+				index.remove(key); /* the blob was evicted */
+			}
+
+			task = loading.get(key);
+			if (task == null)
+			{
+				task = new FutureTask<String>(new Callable<String>() {
+					public String call() throws VcsException
+					{
+						return store(key, loader);
+					}
+				});
+				loading.put(key, task);
+				owner = true;
+			}
+		}
+
+		if (owner)
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					loading.remove(key);
+				}
+			}
+		}
+
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new VcsException("Interrupted while waiting for the content of " + key, ex);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof VcsException)
+				throw (VcsException)cause;
+			throw new VcsException("Unable to get the content of " + key + ": " + cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Loads the content into a temporary file, hashing it on the way, and moves
+	 * it in place unless a blob with the same content is already there.
+	 */
+	private String store(String key, Loader loader) throws VcsException
+	{
+		File tmpFile;
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+			tmpFile = File.createTempFile("content", ".tmp", tmpDir);
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new VcsException("Unable to hash content: " + ex.getMessage(), ex);
+		}
+		catch (IOException ex)
+		{
+			throw new VcsException("Unable to create a temporary file!", ex);
+		}
+
+		try
+		{
+			OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)), digest);
+			try
+			{
+				loader.load(out);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			String hash = toHex(digest.digest());
+			long size = tmpFile.length();
+			synchronized (this)
+			{
+				File blob = getBlobFile(hash);
+				if (!blobs.containsKey(hash))
+				{
+					blob.getParentFile().mkdirs();
+					if (!(blob.isFile() && blob.length() == size) && !moveFile(tmpFile, blob))
+						throw new IOException("Unable to rename " + tmpFile.getAbsolutePath() + " to " + blob.getAbsolutePath());
+					blobs.put(hash, size);
+					totalBytes += size;
+					evict(hash);
+				}
+				if (!hash.equals(index.put(key, hash)))
+					writeIndex(key, hash);
+			}
+			return hash;
+		}
+		catch (IOException ex)
+		{
+			throw new VcsException("Unable to store content of " + key + ": " + ex.getMessage(), ex);
+		}
+		finally
+		{
+			tmpFile.delete();
+		}
+	}
+
+	private synchronized boolean pin(String hash)
+	{
+		if (blobs.get(hash) == null) // also makes it the most recently used
+			return false;
+		Integer count = pinned.get(hash);
+		pinned.put(hash, (count != null) ? count + 1 : 1);
+		return true;
+	}
+
+	private synchronized void unpin(String hash)
+	{
+		Integer count = pinned.remove(hash);
+		if (count != null && count > 1)
+			pinned.put(hash, count - 1);
+	}
+
+	private byte[] readBlob(String hash) throws IOException
+	{
+		// Straight from the channel into the array that is returned
+		FileChannel channel = new FileInputStream(getBlobFile(hash)).getChannel();
+		try
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Content too large: " + size + " bytes");
+			byte[] content = new byte[(int)size];
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer) < 0)
+					throw new EOFException("Content was truncated");
+			}
+			return content;
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Removes the least recently used blobs until the cache fits, keeping the
+	 * given one and the ones being read.
+	 */
+	private void evict(String keep)
+	{
+		for (Iterator<Map.Entry<String, Long>> it = blobs.entrySet().iterator(); it.hasNext() && totalBytes > maxBytes; )
+		{
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getKey().equals(keep) || pinned.containsKey(entry.getKey()))
+				continue;
+			getBlobFile(entry.getKey()).delete();
+			totalBytes -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	private File getBlobFile(String hash)
+	{
+		return new File(new File(blobDir, hash.substring(0, 2)), hash);
+	}
+
+	private static boolean moveFile(File from, File to)
+	{
+		if (from.renameTo(to))
+			return true;
+		// Windows does not replace an existing file
+		return to.delete() && from.renameTo(to);
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Finds the blobs on disk, oldest first, so that eviction goes on where it
+	 * stopped.
+	 */
+	private void loadBlobs()
+	{
+		List<File> files = new ArrayList<File>();
+		File[] dirs = blobDir.listFiles();
+		if (dirs != null)
+		{
+			for (File dir : dirs)
+			{
+				File[] inDir = dir.listFiles();
+				if (inDir != null)
+					files.addAll(Arrays.asList(inDir));
+			}
+		}
+		Collections.sort(files, new Comparator<File>() {
+			public int compare(File a, File b)
+			{
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+		for (File file : files)
+		{
+			blobs.put(file.getName(), file.length());
+			totalBytes += file.length();
+		}
+		evict(null);
+	}
+
+	private void loadIndex()
+	{
+		boolean whole = journal.load(new Journal.Visitor() {
+			public void record(@NotNull String key, @NotNull String hash)
+			{
+				if (blobs.containsKey(hash))
+					index.put(key, hash);
+			}
+		});
+		if (!whole || journal.getRecords() > index.size())
+		{
+			journal.compact(index);
+		}
+		Loggers.VCS.info("Loaded " + index.size() + " entries (" + blobs.size() + " files, " + totalBytes
+			+ " bytes) from content cache " + blobDir.getParentFile().getAbsolutePath());
+	}
+
+	private void loadElements()
+	{
+		boolean whole = elementJournal.load(new Journal.Visitor() {
+			public void record(@NotNull String key, @NotNull String elementId)
+			{
+				elements.put(key, elementId);
+			}
+		});
+		if (!whole || elementJournal.getRecords() > elements.size())
+		{
+			elementJournal.compact(elements);
+		}
+	}
+
+	private void writeIndex(String key, String hash)
+	{
+		journal.append(key, hash);
+		journal.flush();
+		if (journal.getRecords() > 2 * maxEntries)
+		{
+			journal.compact(index);
+		}
+	}
+}
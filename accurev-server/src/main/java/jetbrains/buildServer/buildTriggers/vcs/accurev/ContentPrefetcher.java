@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcCatProcess;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcCommandContext;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.ProcessGovernor;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.VcsChange;
+import jetbrains.buildServer.vcs.VcsChangeInfo;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Loads the before and after content of newly collected changes into the
+ * content cache, so that the diff of a change opens without waiting for
+ * AccuRev.
+ *
+ * The content is loaded by a few low priority threads, with background
+ * priority for the AccuRev processes. Files queued beyond the limit are not
+ * prefetched, and nothing is loaded while the AccuRev server is unreachable.
+ *
+ * @author Francois Retief
+ */
+public class ContentPrefetcher
+{
+	private final ContentCache cache;
+	private final File workingDir;
+	private final ThreadPoolExecutor executor;
+	private final ConcurrentMap<String, Boolean> queued = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * @param cache also has the element ids of the changed paths, put there
+	 *              while the changes were collected
+	 */
+	public ContentPrefetcher(@NotNull ContentCache cache, @NotNull File workingDir, int threads, int maxQueued)
+	{
+		this.cache = cache;
+		this.workingDir = workingDir;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)), new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "AccuRev content prefetch");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues the content of the files changed by the modifications.
+	 */
+	public void prefetch(@NotNull Settings settings, @NotNull List<ModificationData> modifications)
+	{
+		for (ModificationData mod : modifications)
+		{
+			for (VcsChange change : mod.getChanges())
+			{
+				if (change.getType() == VcsChangeInfo.Type.DIRECTORY_CHANGED)
+					continue;
+
+				String path = change.getRelativeFileName();
+				String elementId = cache.getElement(settings, mod.getDisplayVersion(), path);
+				if (elementId == null)
+					continue;
+
+				if (!prefetch(settings, change.getAfterChangeRevisionNumber(), elementId, path)
+						|| !prefetch(settings, change.getBeforeChangeRevisionNumber(), elementId, path))
+				{
+					Loggers.VCS.debug("Content prefetch queue is full, skipping the rest of the changes");
+					return;
+				}
+			}
+		}
+	}
+
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns false when the queue is full.
+	 */
+	private boolean prefetch(final Settings settings, final String version, final String elementId, final String path)
+	{
+		if (version == null || !ContentCache.isCacheable(version))
+			return true;
+
+		final String key = ContentCache.makeKey(settings, elementId, version);
+		if (cache.contains(key) || queued.putIfAbsent(key, Boolean.TRUE) != null)
+			return true;
+
+		try
+		{
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						load(settings, version, elementId, path, key);
+					}
+					finally
+					{
+						queued.remove(key);
+					}
+				}
+			});
+			return true;
+		}
+		catch (RejectedExecutionException ex)
+		{
+			queued.remove(key);
+			return false;
+		}
+	}
+
+	private void load(final Settings settings, final String version, final String elementId, String path, String key)
+	{
+		try
+		{
+			final AcCommandContext context = AcCommandContext.create(settings, workingDir)
+				.withPriority(ProcessGovernor.Priority.BACKGROUND);
+			if (context.getCircuitBreaker().isOpen())
+				return;
+
+			cache.prefetch(key, new ContentCache.Loader() {
+				public void load(@NotNull OutputStream out) throws VcsException
+				{
+					AcCatProcess.getInstance(context).catElementContent(version, elementId, settings.getDepot(), out);
+				}
+			});
+		}
+		catch (VcsException ex)
+		{
+			// The diff view will ask for it again, and report the error then
+			Loggers.VCS.debug("Unable to prefetch " + path + " at " + version + ": " + ex.getMessage());
+		}
+	}
+}
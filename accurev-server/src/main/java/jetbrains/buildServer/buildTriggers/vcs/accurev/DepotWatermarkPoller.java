@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcRunProcessExe;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps the last transaction (the watermark) of every depot in use, so that all
+ * the VCS roots on a depot share one 'accurev hist -t now.1' per interval instead
+ * of running it on every check for changes.
+ *
+ * A depot is polled in the background from the first time its watermark is asked
+ * for, and dropped once nobody asked for it for a while. It is polled with the
+ * settings (user, password) of the root that asked last. When a background poll
+ * fails, the next caller polls again itself and gets the error, rather than a
+ * watermark that stopped moving.
+ *
+ * @author Francois Retief
+ */
+public class DepotWatermarkPoller
+{
+	/** Stop polling a depot that was not asked for during this many intervals. */
+	private static final int IDLE_INTERVALS = 10;
+
+	private static class Depot
+	{
+		volatile Settings settings;
+		volatile String watermark;
+		volatile long lastAccess;
+		volatile Exception error;
+
+		Depot(Settings settings)
+		{
+			this.settings = settings;
+		}
+	}
+
+	private final File workingDir;
+	private final long interval;
+	private final ConcurrentMap<String, Depot> depots = new ConcurrentHashMap<String, Depot>();
+	private final ScheduledExecutorService scheduler;
+
+	public DepotWatermarkPoller(@NotNull File workingDir, int intervalSeconds)
+	{
+		this.workingDir = workingDir;
+		this.interval = TimeUnit.SECONDS.toMillis(intervalSeconds);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "AccuRev depot watermark poller");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				pollAll();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the last transaction of the depot of the given root settings. Only
+	 * the first call for a depot runs AccuRev, the others are served from memory.
+	 */
+	@NotNull
+	public String getWatermark(@NotNull Settings settings) throws VcsException
+	{
+		String key = getKey(settings);
+		Depot depot = depots.get(key);
+		if (depot == null)
+		{
+			Depot added = new Depot(settings);
+			depot = depots.putIfAbsent(key, added);
+			if (depot == null)
+				depot = added;
+		}
+		depot.settings = settings;
+		depot.lastAccess = System.currentTimeMillis();
+
+		String watermark = depot.watermark;
+		if (watermark == null || depot.error != null)
+		{
+			synchronized (depot)
+			{
+				if (depot.watermark == null || depot.error != null)
+				{
+					// Fails the caller if the depot can't be polled with its settings either
+					String polled = poll(settings);
+					depot.error = null;
+					update(depot, polled);
+				}
+				watermark = depot.watermark;
+			}
+		}
+		return watermark;
+	}
+
+	/**
+	 * Moves the watermark of a depot forward, when a newer transaction was seen
+	 * by other means than the poller.
+	 */
+	public void update(@NotNull Settings settings, @NotNull String watermark)
+	{
+		Depot depot = depots.get(getKey(settings));
+		if (depot != null)
+		{
+			update(depot, watermark);
+		}
+	}
+
+	private static void update(Depot depot, String watermark)
+	{
+		synchronized (depot)
+		{
+			if (depot.watermark == null || Long.parseLong(watermark) > Long.parseLong(depot.watermark))
+			{
+				depot.watermark = watermark;
+			}
+		}
+	}
+
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+	}
+
+	private static String getKey(Settings settings)
+	{
+		return settings.getServerName() + ":" + settings.getServerPort() + "/" + settings.getDepot();
+	}
+
+	private String poll(Settings settings) throws VcsException
+	{
+		AcRunProcessExe cmd = (AcRunProcessExe)AcRunProcessExe.getInstance(settings, workingDir);
+		return cmd.getLastTransactionId(settings.getDepot());
+	}
+
+	private void pollAll()
+	{
+		long idleSince = System.currentTimeMillis() - IDLE_INTERVALS * interval;
+		for (Iterator<Map.Entry<String, Depot>> it = depots.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry<String, Depot> entry = it.next();
+			Depot depot = entry.getValue();
+			if (depot.lastAccess < idleSince)
+			{
+				Loggers.VCS.debug("Stopped polling the watermark of idle depot " + entry.getKey());
+				it.remove();
+				continue;
+			}
+
+			try
+			{
+				String watermark = poll(depot.settings);
+				depot.error = null;
+				update(depot, watermark);
+			}
+			catch (Exception ex)
+			{
+				// The next caller polls by itself, and reports the error if it fails too
+				depot.error = ex;
+				Loggers.VCS.warn("Unable to poll the watermark of depot " + entry.getKey() + ": " + ex.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcRunProcessExe;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads the history of a stream chain over a range of transactions in windows
+ * (teamcity.accurev.historyWindow transactions each), newest first, so that
+ * only one window of a long range is read at a time. The next window is
+ * started while the current one is processed, when there are permits to spare.
+ *
+ * @author Francois Retief
+ */
+class HistoryWindowReader
+{
+	/** Receives the transactions of the chain, newest first. */
+	interface Visitor
+	{
+		/**
+		 * Called before each transaction and before each window; throws to stop
+		 * reading.
+		 */
+		void checkCancelled() throws VcsException;
+
+		void transaction(@NotNull ChainHistoryReader.Entry entry) throws VcsException;
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxPermits;
+	private final int window;
+
+	/**
+	 * @see ChainHistoryReader#ChainHistoryReader
+	 * @param window the number of transactions in a window
+	 */
+	public HistoryWindowReader(@NotNull ExecutorService executor, @NotNull Semaphore permits, int maxPermits, int window)
+	{
+		this.executor = executor;
+		this.permits = permits;
+		this.maxPermits = maxPermits;
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * Reads the history of the streams from the given transaction up to the
+	 * high one, both included. The commands the visitor runs go in the process
+	 * slots taken for the window being read.
+	 */
+	public void read(@NotNull AcRunProcessExe run, String depot, @NotNull List<String> streams, long from, long high,
+			@NotNull Visitor visitor) throws VcsException
+	{
+		ChainHistoryReader reader = null;
+		ChainHistoryReader nextReader = null;
+		try
+		{
+			reader = startWindow(run, depot, streams, from, high, true);
+			run.setReservation(reader.getReservation());
+			while (reader != null)
+			{
+				long nextHigh = getWindowLow(from, high) - 1;
+				if (nextHigh >= from)
+				{
+					nextReader = startWindow(run, depot, streams, from, nextHigh, false);
+				}
+
+				for (ChainHistoryReader.Entry entry = reader.next(); entry != null; entry = reader.next())
+				{
+					visitor.checkCancelled();
+					visitor.transaction(entry);
+				}
+				run.setReservation(null);
+				reader.close();
+				reader = null;
+
+				if (nextHigh < from)
+					break;
+				visitor.checkCancelled();
+				reader = (nextReader != null) ? nextReader : startWindow(run, depot, streams, from, nextHigh, true);
+				run.setReservation(reader.getReservation());
+				nextReader = null;
+				high = nextHigh;
+			}
+		}
+		finally
+		{
+			run.setReservation(null);
+			if (reader != null)
+				reader.close();
+			if (nextReader != null)
+				nextReader.close();
+		}
+	}
+
+	/**
+	 * Creates the reader of one window.
+	 */
+	@NotNull
+	ChainHistoryReader createReader(@NotNull List<String> streams)
+	{
+		return new ChainHistoryReader(executor, permits, maxPermits, streams);
+	}
+
+	private long getWindowLow(long from, long high)
+	{
+		return Math.max(from, high - window + 1);
+	}
+
+	/**
+	 * Starts reading the history of the stream chain for the window ending at the
+	 * given transaction. Returns null if not waiting and there are no permits.
+	 */
+	private ChainHistoryReader startWindow(AcRunProcessExe run, String depot, List<String> streams,
+			long from, long high, boolean wait) throws VcsException
+	{
+		ChainHistoryReader reader = createReader(streams);
+		long low = getWindowLow(from, high);
+		if (!reader.start(run, depot, String.valueOf(low), String.valueOf(high), wait))
+			return null;
+		return reader;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Fetches the content of the files of a patch on pool threads, ahead of the
+ * thread that writes the patch, and hands the files over in the order they
+ * were added; the patch builder has to be called in order.
+ *
+ * At most a fixed number of fetches run (or wait to be taken) at any time, so
+ * that a large patch neither floods the AccuRev server nor fills the disk.
+ *
+ * @author Francois Retief
+ */
+class PatchContentFetcher
+{
+	private final ExecutorService executor;
+	private final int maxRunning;
+	private final LinkedList<Callable<File>> waiting = new LinkedList<Callable<File>>();
+	private final LinkedList<Future<File>> running = new LinkedList<Future<File>>();
+
+	public PatchContentFetcher(ExecutorService executor, int maxRunning)
+	{
+		this.executor = executor;
+		this.maxRunning = Math.max(1, maxRunning);
+	}
+
+	/**
+	 * Queues a fetch. It returns the file holding the content, or null if
+	 * there is no content to add.
+	 */
+	public void add(Callable<File> fetch)
+	{
+		waiting.add(fetch);
+	}
+
+	/**
+	 * Returns the result of the next fetch in order, waiting for it if needed.
+	 */
+	@Nullable
+	public File take() throws VcsException, IOException
+	{
+		fill();
+		if (running.isEmpty())
+			throw new IllegalStateException("No more content to take");
+
+		// No refill after taking: the file handed out still exists until the
+		// caller has written it, and it counts against the limit until then
+		Future<File> next = running.removeFirst();
+		try
+		{
+			return next.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new VcsException("Interrupted while fetching the content of the patch", ex);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof VcsException)
+				throw (VcsException)cause;
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new VcsException("Unable to fetch the content of the patch: " + cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Cancels the fetches that were not taken.
+	 */
+	public void close()
+	{
+		waiting.clear();
+		for (Future<File> future : running)
+		{
+			future.cancel(true);
+		}
+		running.clear();
+	}
+
+	private void fill()
+	{
+		while (running.size() < maxRunning && !waiting.isEmpty())
+		{
+			running.add(executor.submit(waiting.removeFirst()));
+		}
+	}
+}
@@ -209,6 +209,14 @@
 			</td>
 		</tr>
 
+		<tr>
+			<th><label for="accurevHome">ACCUREV_HOME:</label></th>
+			<td>
+				<props:textProperty name="accurevHome" className="longField"/>
+				<div class="smallNote" style="margin: 0;">ACCUREV_HOME: the directory AccuRev keeps its login session in. Leave empty to use the one of the TeamCity server and agents.</div>
+			</td>
+		</tr>
+
 	</l:settingsGroup>
 
 </table>
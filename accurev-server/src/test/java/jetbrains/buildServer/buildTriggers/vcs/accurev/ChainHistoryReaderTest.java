@@ -0,0 +1,244 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcRunProcessExe;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.HistoryConsumer;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.ProcessGovernor;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.accurev.common.data.TransactionData;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests merging the history of a stream chain, with fake histories in place of
+ * 'accurev hist': the order of the merge, which stream a transaction seen in
+ * several of them comes from, and giving back permits and process slots.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class ChainHistoryReaderTest
+{
+	private static final int PERMITS = 4;
+	private static final List<String> CHAIN = Arrays.asList("dev", "int", "root");
+
+	private File workDir;
+	private ExecutorService executor;
+	private Semaphore permits;
+	private AcRunProcessExe run;
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		workDir = FileUtil.createTempDirectory("history", "");
+		executor = Executors.newCachedThreadPool();
+		permits = new Semaphore(PERMITS, true);
+
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(Constants.SERVER_NAME, "chainhistory");
+		properties.put(Constants.SERVER_PORT, "5050");
+		properties.put(Constants.DEPOT, "depot");
+		properties.put(Constants.WATCHSTREAM, "dev");
+		properties.put(Constants.USERNAME, "user");
+		properties.put(Constants.COMMAND_DIR, workDir.getPath());
+		run = new AcRunProcessExe(workDir, new Settings(workDir, properties));
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		executor.shutdownNow();
+		FileUtil.delete(workDir);
+	}
+
+	public void testMergesNewestFirst() throws VcsException
+	{
+		Map<String, long[]> history = new HashMap<String, long[]>();
+		history.put("dev", new long[] { 10, 7, 3 });
+		history.put("int", new long[] { 9, 8, 2 });
+		history.put("root", new long[] { 6, 1 });
+
+		assertEquals(readAll(createReader(CHAIN, history)),
+				Arrays.asList("dev/10", "int/9", "int/8", "dev/7", "root/6", "dev/3", "int/2", "root/1"));
+		checkAllReleased();
+	}
+
+	public void testTieGoesToStreamNearestWatchStream() throws VcsException
+	{
+		Map<String, long[]> history = new HashMap<String, long[]>();
+		history.put("dev", new long[] { 5 });
+		history.put("int", new long[] { 5, 4 });
+		history.put("root", new long[] { 5, 4 });
+
+		assertEquals(readAll(createReader(CHAIN, history)),
+				Arrays.asList("dev/5", "int/5", "root/5", "int/4", "root/4"));
+		checkAllReleased();
+	}
+
+	public void testLongerChainThanPermitsIsReadOneByOne() throws VcsException
+	{
+		Map<String, long[]> history = new HashMap<String, long[]>();
+		history.put("dev", new long[] { 5, 2 });
+		history.put("int", new long[] { 4 });
+		history.put("root", new long[] { 5, 3 });
+
+		Semaphore permits = new Semaphore(2, true);
+		ChainHistoryReader reader = new FakeChainHistoryReader(permits, 2, CHAIN, history, null);
+		assertFalse(reader.start(run, "depot", "1", "10", false), "started without enough permits");
+		assertEquals(permits.availablePermits(), 2);
+
+		assertTrue(reader.start(run, "depot", "1", "10", true));
+		assertEquals(permits.availablePermits(), 1, "a sequential read takes a single permit");
+		assertEquals(readRest(reader), Arrays.asList("dev/5", "root/5", "int/4", "root/3", "dev/2"));
+		reader.close();
+		assertEquals(permits.availablePermits(), 2);
+		checkAllReleased();
+	}
+
+	public void testCloseReleasesPermitsAndSlots() throws Exception
+	{
+		// More than the readers may queue, so that they are blocked when closed
+		long[] ids = new long[100];
+		for (int i = 0; i < ids.length; ++i)
+		{
+			ids[i] = ids.length - i;
+		}
+		Map<String, long[]> history = new HashMap<String, long[]>();
+		for (String stream : CHAIN)
+		{
+			history.put(stream, ids);
+		}
+		CountDownLatch finished = new CountDownLatch(CHAIN.size());
+
+		ChainHistoryReader reader = new FakeChainHistoryReader(permits, PERMITS, CHAIN, history, finished);
+		assertTrue(reader.start(run, "depot", "1", "100", true));
+		assertEquals(permits.availablePermits(), PERMITS - CHAIN.size());
+		assertNull(getGovernor().tryAcquire(getGovernor().getMaxProcesses() - CHAIN.size()), "slots were not taken");
+
+		assertEquals(reader.next().tx.getTranId(), "100");
+		reader.close();
+
+		assertTrue(finished.await(10, TimeUnit.SECONDS), "the stream readers were not stopped");
+		assertEquals(permits.availablePermits(), PERMITS);
+		checkAllReleased();
+	}
+
+	private ChainHistoryReader createReader(List<String> streams, Map<String, long[]> history)
+	{
+		return new FakeChainHistoryReader(permits, PERMITS, streams, history, null);
+	}
+
+	private List<String> readAll(ChainHistoryReader reader) throws VcsException
+	{
+		try
+		{
+			assertTrue(reader.start(run, "depot", "1", "10", true));
+			assertNotNull(reader.getReservation());
+			return readRest(reader);
+		}
+		finally
+		{
+			reader.close();
+			assertEquals(permits.availablePermits(), PERMITS);
+		}
+	}
+
+	private static List<String> readRest(ChainHistoryReader reader) throws VcsException
+	{
+		List<String> result = new ArrayList<String>();
+		for (ChainHistoryReader.Entry entry = reader.next(); entry != null; entry = reader.next())
+		{
+			result.add(entry.stream + "/" + entry.tx.getTranId());
+		}
+		return result;
+	}
+
+	private ProcessGovernor getGovernor()
+	{
+		return run.getContext().getGovernor();
+	}
+
+	private void checkAllReleased()
+	{
+		ProcessGovernor.Permit all = getGovernor().tryAcquire(getGovernor().getMaxProcesses());
+		assertNotNull(all, "process slots were not released");
+		all.release();
+	}
+
+	/**
+	 * Hands out the given transactions of each stream, newest first, in place of
+	 * 'accurev hist'.
+	 */
+	private class FakeChainHistoryReader extends ChainHistoryReader
+	{
+		private final Map<String, long[]> history;
+		private final CountDownLatch finished;
+
+		public FakeChainHistoryReader(Semaphore permits, int maxPermits, List<String> streams, Map<String, long[]> history,
+				CountDownLatch finished)
+		{
+			super(executor, permits, maxPermits, streams);
+			this.history = history;
+			this.finished = finished;
+		}
+
+		int readHistory(@NotNull AcRunProcessExe streamRun, String depot, String stream, String fromVersion,
+				String toVersion, @NotNull HistoryConsumer consumer) throws VcsException
+		{
+			try
+			{
+				long[] ids = history.get(stream);
+				for (long id : ids)
+				{
+					TransactionData tx = new TransactionData();
+					tx.setTranId(String.valueOf(id));
+					consumer.transaction(tx);
+				}
+				return ids.length;
+			}
+			finally
+			{
+				if (finished != null)
+					finished.countDown();
+			}
+		}
+	}
+}
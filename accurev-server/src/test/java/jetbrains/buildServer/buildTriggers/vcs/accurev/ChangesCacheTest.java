@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests sharing collected changes: requests for the same range at the same
+ * time collect once, and a failed collection is not kept.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class ChangesCacheTest
+{
+	private ExecutorService executor;
+
+	@BeforeMethod
+	public void setUp()
+	{
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	public void testConcurrentRequestsCollectOnce() throws Exception
+	{
+		final ChangesCache cache = new ChangesCache(4);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger collections = new AtomicInteger();
+		final ChangesCache.Collector collector = new ChangesCache.Collector() {
+			@NotNull
+			public List<ModificationData> collect() throws VcsException
+			{
+				collections.incrementAndGet();
+				started.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException ex)
+				{
+					throw new VcsException("interrupted", ex);
+				}
+				return new ArrayList<ModificationData>();
+			}
+		};
+		Callable<List<ModificationData>> request = new Callable<List<ModificationData>>() {
+			public List<ModificationData> call() throws VcsException
+			{
+				return cache.get("key", collector);
+			}
+		};
+
+		Future<List<ModificationData>> first = executor.submit(request);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		Future<List<ModificationData>> second = executor.submit(request);
+		Thread.sleep(100); // let the second request wait for the first
+		release.countDown();
+
+		List<ModificationData> result = first.get(10, TimeUnit.SECONDS);
+		assertSame(second.get(10, TimeUnit.SECONDS), result);
+		assertEquals(collections.get(), 1);
+
+		// A later request is answered from the results
+		assertSame(cache.get("key", collector), result);
+		assertEquals(collections.get(), 1);
+	}
+
+	public void testFailedCollectionIsNotCached() throws VcsException
+	{
+		ChangesCache cache = new ChangesCache(4);
+		final AtomicInteger collections = new AtomicInteger();
+		ChangesCache.Collector collector = new ChangesCache.Collector() {
+			@NotNull
+			public List<ModificationData> collect() throws VcsException
+			{
+				if (collections.incrementAndGet() == 1)
+					throw new VcsException("server unreachable");
+				return new ArrayList<ModificationData>();
+			}
+		};
+
+		try
+		{
+			cache.get("key", collector);
+			fail("the failure was not passed on");
+		}
+		catch (VcsException ex)
+		{
+			assertEquals(ex.getMessage(), "server unreachable");
+		}
+
+		assertTrue(cache.get("key", collector).isEmpty());
+		assertEquals(collections.get(), 2, "the failure was kept");
+	}
+}
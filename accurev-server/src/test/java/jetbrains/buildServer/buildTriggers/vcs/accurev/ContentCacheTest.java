@@ -0,0 +1,189 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the content cache: loading once, the index across restarts, sharing
+ * blobs, eviction and the element ids of changed paths.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class ContentCacheTest
+{
+	private File cacheDir;
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		cacheDir = FileUtil.createTempDirectory("content", "");
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		FileUtil.delete(cacheDir);
+	}
+
+	public void testContentIsLoadedOnce() throws VcsException
+	{
+		ContentCache cache = new ContentCache(cacheDir, 1024 * 1024, 100);
+		CountingLoader loader = new CountingLoader("hello");
+		assertEquals(new String(cache.get("a", loader)), "hello");
+		assertEquals(new String(cache.get("a", loader)), "hello");
+		assertEquals(loader.loads, 1);
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("b"));
+		cache.close();
+	}
+
+	public void testContentSurvivesRestart() throws VcsException
+	{
+		ContentCache cache = new ContentCache(cacheDir, 1024 * 1024, 100);
+		cache.prefetch("a", new CountingLoader("first"));
+		cache.prefetch("b", new CountingLoader("second"));
+		cache.close();
+
+		cache = new ContentCache(cacheDir, 1024 * 1024, 100);
+		CountingLoader loader = new CountingLoader("reloaded");
+		assertEquals(new String(cache.get("a", loader)), "first");
+		assertEquals(new String(cache.get("b", loader)), "second");
+		assertEquals(loader.loads, 0);
+		cache.close();
+	}
+
+	public void testSameContentIsStoredOnce() throws VcsException
+	{
+		ContentCache cache = new ContentCache(cacheDir, 1024 * 1024, 100);
+		cache.prefetch("a", new CountingLoader("same"));
+		cache.prefetch("b", new CountingLoader("same"));
+		cache.close();
+
+		File[] dirs = new File(cacheDir, "blobs").listFiles();
+		assertEquals(dirs.length, 1);
+		assertEquals(dirs[0].listFiles().length, 1);
+	}
+
+	public void testLeastRecentlyUsedContentIsEvicted() throws VcsException
+	{
+		ContentCache cache = new ContentCache(cacheDir, 10, 100);
+		cache.prefetch("a", new CountingLoader("aaaaaa"));
+		cache.prefetch("b", new CountingLoader("bbbbbb"));
+		assertFalse(cache.contains("a"));
+		assertTrue(cache.contains("b"));
+
+		CountingLoader loader = new CountingLoader("aaaaaa");
+		assertEquals(new String(cache.get("a", loader)), "aaaaaa");
+		assertEquals(loader.loads, 1);
+		assertFalse(cache.contains("b"));
+		cache.close();
+	}
+
+	public void testElementsSurviveRestart() throws VcsException
+	{
+		Settings settings = createSettings("depot");
+		ContentCache cache = new ContentCache(cacheDir, 1024 * 1024, 100);
+		cache.putElement(settings, "42", "src/a.txt", "12");
+		cache.close();
+
+		cache = new ContentCache(cacheDir, 1024 * 1024, 100);
+		assertEquals(cache.getElement(settings, "42", "src/a.txt"), "12");
+		assertNull(cache.getElement(settings, "43", "src/a.txt"));
+		assertNull(cache.getElement(createSettings("other"), "42", "src/a.txt"), "element of another depot");
+		cache.close();
+	}
+
+	public void testElementsDoNotPushOutContent() throws VcsException
+	{
+		Settings settings = createSettings("depot");
+		ContentCache cache = new ContentCache(cacheDir, 1024 * 1024, 2);
+		cache.prefetch("a", new CountingLoader("first"));
+		cache.prefetch("b", new CountingLoader("second"));
+		for (int i = 0; i < 10; ++i)
+		{
+			cache.putElement(settings, String.valueOf(i), "src/a.txt", "12");
+		}
+		assertTrue(cache.contains("a"));
+		assertTrue(cache.contains("b"));
+		assertNull(cache.getElement(settings, "0", "src/a.txt"));
+		assertEquals(cache.getElement(settings, "9", "src/a.txt"), "12");
+		cache.close();
+	}
+
+	public void testOnlyFixedVersionsAreCacheable()
+	{
+		assertTrue(ContentCache.isCacheable("stream/12"));
+		assertFalse(ContentCache.isCacheable("stream"));
+		assertFalse(ContentCache.isCacheable("stream/"));
+		assertFalse(ContentCache.isCacheable("/12"));
+		assertFalse(ContentCache.isCacheable("stream/12a"));
+	}
+
+	private Settings createSettings(String depot)
+	{
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(Constants.SERVER_NAME, "server");
+		properties.put(Constants.SERVER_PORT, "5050");
+		properties.put(Constants.DEPOT, depot);
+		properties.put(Constants.WATCHSTREAM, "dev");
+		properties.put(Constants.USERNAME, "user");
+		properties.put(Constants.COMMAND_DIR, cacheDir.getPath());
+		return new Settings(cacheDir, properties);
+	}
+
+	private static class CountingLoader implements ContentCache.Loader
+	{
+		private final String content;
+		private int loads;
+
+		public CountingLoader(String content)
+		{
+			this.content = content;
+		}
+
+		public void load(@NotNull OutputStream out) throws VcsException
+		{
+			++loads;
+			try
+			{
+				out.write(content.getBytes());
+			}
+			catch (IOException ex)
+			{
+				throw new VcsException(ex.getMessage(), ex);
+			}
+		}
+	}
+}
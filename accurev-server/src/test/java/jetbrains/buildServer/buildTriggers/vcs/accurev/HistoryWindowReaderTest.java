@@ -0,0 +1,231 @@
+/*
+ * Copyright 2009 Francois Retief
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.buildTriggers.vcs.accurev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.AcRunProcessExe;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.HistoryConsumer;
+import jetbrains.buildServer.buildTriggers.vcs.accurev.command.ProcessGovernor;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.accurev.common.data.TransactionData;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests reading the history of a stream chain in windows of transactions, with
+ * fake histories in place of 'accurev hist': ranges that are not a multiple of
+ * the window, a single transaction, and cancelling in the middle of a window.
+ *
+ * @author Francois Retief
+ */
+@Test
+public class HistoryWindowReaderTest
+{
+	private static final int PERMITS = 4;
+	private static final List<String> CHAIN = Arrays.asList("dev", "root");
+
+	private File workDir;
+	private ExecutorService executor;
+	private Semaphore permits;
+	private AcRunProcessExe run;
+	/** The windows read from the watch stream, as "low-high". */
+	private List<String> windows;
+	/** Every transaction from 1 to 20 is in "dev", the even ones in "root" too. */
+	private Map<String, List<Long>> history;
+
+	@BeforeMethod
+	public void setUp() throws IOException
+	{
+		workDir = FileUtil.createTempDirectory("history", "");
+		executor = Executors.newCachedThreadPool();
+		permits = new Semaphore(PERMITS, true);
+		windows = Collections.synchronizedList(new ArrayList<String>());
+
+		history = new HashMap<String, List<Long>>();
+		history.put("dev", new ArrayList<Long>());
+		history.put("root", new ArrayList<Long>());
+		for (long id = 20; id > 0; --id)
+		{
+			history.get("dev").add(id);
+			if (id % 2 == 0)
+				history.get("root").add(id);
+		}
+
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put(Constants.SERVER_NAME, "historywindow");
+		properties.put(Constants.SERVER_PORT, "5050");
+		properties.put(Constants.DEPOT, "depot");
+		properties.put(Constants.WATCHSTREAM, "dev");
+		properties.put(Constants.USERNAME, "user");
+		properties.put(Constants.COMMAND_DIR, workDir.getPath());
+		run = new AcRunProcessExe(workDir, new Settings(workDir, properties));
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		executor.shutdownNow();
+		FileUtil.delete(workDir);
+	}
+
+	public void testRangeNotMultipleOfWindow() throws VcsException
+	{
+		RecordingVisitor visitor = new RecordingVisitor(-1);
+		createReader(4).read(run, "depot", CHAIN, 3, 13, visitor);
+
+		assertEquals(windows, Arrays.asList("10-13", "6-9", "3-5"));
+		assertEquals(visitor.seen, Arrays.asList("dev/13", "dev/12", "root/12", "dev/11", "dev/10", "root/10",
+				"dev/9", "dev/8", "root/8", "dev/7", "dev/6", "root/6", "dev/5", "dev/4", "root/4", "dev/3"));
+		checkAllReleased();
+	}
+
+	public void testWindowLargerThanRange() throws VcsException
+	{
+		RecordingVisitor visitor = new RecordingVisitor(-1);
+		createReader(500).read(run, "depot", CHAIN, 17, 20, visitor);
+
+		assertEquals(windows, Arrays.asList("17-20"));
+		assertEquals(visitor.seen, Arrays.asList("dev/20", "root/20", "dev/19", "dev/18", "root/18", "dev/17"));
+		checkAllReleased();
+	}
+
+	public void testSingleTransactionRange() throws VcsException
+	{
+		RecordingVisitor visitor = new RecordingVisitor(-1);
+		createReader(4).read(run, "depot", CHAIN, 8, 8, visitor);
+
+		assertEquals(windows, Arrays.asList("8-8"));
+		assertEquals(visitor.seen, Arrays.asList("dev/8", "root/8"));
+		checkAllReleased();
+	}
+
+	public void testCancelledInMiddleOfWindow()
+	{
+		RecordingVisitor visitor = new RecordingVisitor(3);
+		try
+		{
+			createReader(5).read(run, "depot", CHAIN, 1, 20, visitor);
+			fail("reading went on after it was cancelled");
+		}
+		catch (VcsException ex)
+		{
+			assertEquals(ex.getMessage(), "cancelled");
+		}
+
+		assertEquals(visitor.seen, Arrays.asList("dev/20", "root/20", "dev/19"));
+		// Only the window being read and the next one were started
+		assertTrue(windows.size() <= 2, "windows read after the cancel: " + windows);
+		assertEquals(windows.get(0), "16-20");
+		assertEquals(permits.availablePermits(), PERMITS);
+		checkAllReleased();
+	}
+
+	private HistoryWindowReader createReader(int window)
+	{
+		return new HistoryWindowReader(executor, permits, PERMITS, window) {
+			ChainHistoryReader createReader(@NotNull List<String> streams)
+			{
+				return new FakeChainHistoryReader(streams);
+			}
+		};
+	}
+
+	private void checkAllReleased()
+	{
+		ProcessGovernor governor = run.getContext().getGovernor();
+		ProcessGovernor.Permit all = governor.tryAcquire(governor.getMaxProcesses());
+		assertNotNull(all, "process slots were not released");
+		all.release();
+	}
+
+	/**
+	 * Records the transactions it is given, and cancels after the given number.
+	 */
+	private static class RecordingVisitor implements HistoryWindowReader.Visitor
+	{
+		private final int cancelAfter;
+		private final List<String> seen = new ArrayList<String>();
+
+		public RecordingVisitor(int cancelAfter)
+		{
+			this.cancelAfter = cancelAfter;
+		}
+
+		public void checkCancelled() throws VcsException
+		{
+			if (seen.size() == cancelAfter)
+				throw new VcsException("cancelled");
+		}
+
+		public void transaction(@NotNull ChainHistoryReader.Entry entry)
+		{
+			seen.add(entry.stream + "/" + entry.tx.getTranId());
+		}
+	}
+
+	/**
+	 * Hands out the transactions of the window from the fake history.
+	 */
+	private class FakeChainHistoryReader extends ChainHistoryReader
+	{
+		public FakeChainHistoryReader(List<String> streams)
+		{
+			super(executor, permits, PERMITS, streams);
+		}
+
+		int readHistory(@NotNull AcRunProcessExe streamRun, String depot, String stream, String fromVersion,
+				String toVersion, @NotNull HistoryConsumer consumer) throws VcsException
+		{
+			if (stream.equals(CHAIN.get(0)))
+				windows.add(fromVersion + "-" + toVersion);
+
+			long from = Long.parseLong(fromVersion);
+			long to = Long.parseLong(toVersion);
+			int count = 0;
+			for (long id : history.get(stream))
+			{
+				if (id < from || id > to)
+					continue;
+				TransactionData tx = new TransactionData();
+				tx.setTranId(String.valueOf(id));
+				consumer.transaction(tx);
+				++count;
+			}
+			return count;
+		}
+	}
+}